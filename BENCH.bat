@@ -0,0 +1,45 @@
+@echo off
+setlocal enabledelayedexpansion
+title Electricity Billing System - Benchmarks
+color 0B
+
+echo ================================================
+echo   Electricity Billing System
+echo   JMH benchmarks
+echo ================================================
+echo.
+
+REM JMH jars (see bench\README.md for where to get them)
+set "JMH_CP=libs\jmh\jmh-core-1.37.jar;libs\jmh\jmh-generator-annprocess-1.37.jar;libs\jmh\jopt-simple-5.0.4.jar;libs\jmh\commons-math3-3.6.1.jar"
+set "DRIVER_JAR=libs\mysql-connector-j-9.5.0.jar"
+
+if not exist libs\jmh\jmh-core-1.37.jar (
+  echo JMH not found in libs\jmh. See bench\README.md.
+  pause
+  exit /b 1
+)
+
+REM 1) Clean previous benchmark build
+if exist bench\bin (
+  rmdir /S /Q bench\bin >nul 2>&1
+)
+mkdir bench\bin >nul 2>&1
+
+REM 2) Compile application and benchmark sources together (JMH generates code at this step)
+echo Compiling sources and benchmarks...
+dir /B /S src\*.java bench\src\*.java > bench_sources.txt
+javac -d bench\bin -cp "%JMH_CP%;%DRIVER_JAR%" @bench_sources.txt
+set "RC=%ERRORLEVEL%"
+del /Q bench_sources.txt >nul 2>&1
+
+if not "%RC%"=="0" (
+  echo.
+  echo Compilation failed. Please review errors above.
+  pause
+  exit /b %RC%
+)
+
+REM 3) Run JMH, passing through any arguments (e.g. a benchmark name or -p records=10000)
+java -cp "bench\bin;%JMH_CP%;%DRIVER_JAR%" org.openjdk.jmh.Main %*
+
+endlocal
@@ -0,0 +1,76 @@
+package com.billing.database;
+
+import com.billing.logic.Money;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes a synthetic user_bills.dat for benchmarks and load-time measurements.
+ * Records are spread over users, one bill per month going back from 2024-12,
+ * with one meter number per user (METER-<user>), like real customers.
+ *
+ * Usage: java com.billing.database.BillDataGenerator <file> <records> [recordsPerUser]
+ */
+public class BillDataGenerator {
+
+    public static final int DEFAULT_RECORDS_PER_USER = 24;
+
+    public static String userName(int user) {
+        return "user" + user;
+    }
+
+    public static String meterNumber(int user) {
+        return "METER-" + user;
+    }
+
+    /**
+     * Period key of the n-th bill of a user, counting back month by month from 2024-12.
+     */
+    public static String periodKey(int n) {
+        int monthsBack = n;
+        int year = 2024 - monthsBack / 12;
+        int monthIndex = 11 - monthsBack % 12;
+        return UserBillStorage.toPeriodKey(year, monthIndex);
+    }
+
+    public static int userCount(int records, int recordsPerUser) {
+        return (records + recordsPerUser - 1) / recordsPerUser;
+    }
+
+    public static void write(File file, int records, int recordsPerUser) throws IOException {
+        Random random = new Random(42);
+        int users = userCount(records, recordsPerUser);
+        int written = 0;
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (int u = 0; u < users; u++) {
+                StringBuilder sb = new StringBuilder(recordsPerUser * 32);
+                sb.append(userName(u)).append(':');
+                for (int n = 0; n < recordsPerUser && written < records; n++, written++) {
+                    if (n > 0) sb.append(',');
+                    int units = random.nextInt(2000);
+                    long paise = 15000 + units * 700L;
+                    sb.append(periodKey(n)).append('|').append(units).append('|');
+                    Money.appendTo(sb, paise).append('|').append(meterNumber(u));
+                }
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: BillDataGenerator <file> <records> [recordsPerUser]");
+            return;
+        }
+        int records = Integer.parseInt(args[1]);
+        int perUser = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RECORDS_PER_USER;
+        long start = System.nanoTime();
+        write(new File(args[0]), records, perUser);
+        System.out.println("Wrote " + records + " records for " + userCount(records, perUser)
+                + " users to " + args[0] + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,81 @@
+package com.billing.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Meter and (meter, month) lookups as BillingFrame runs them on every calculation.
+ * The "hit" cases look for a meter somewhere in the middle of the data, "miss" for one nobody has.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class BillLookupBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    public int records;
+
+    @Param({ "24" })
+    public int recordsPerUser;
+
+    private File dataFile;
+    private String knownMeter;
+    private String knownPeriod;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dataFile = File.createTempFile("user_bills_bench", ".dat");
+        BillDataGenerator.write(dataFile, records, recordsPerUser);
+        UserBillStorage.useStorageFile(dataFile.getPath());
+        int middleUser = BillDataGenerator.userCount(records, recordsPerUser) / 2;
+        knownMeter = BillDataGenerator.meterNumber(middleUser).toLowerCase();
+        knownPeriod = BillDataGenerator.periodKey(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        dataFile.delete();
+    }
+
+    @Benchmark
+    public boolean meterExistsForOtherUserHit() {
+        return UserBillStorage.meterNumberExistsForOtherUser(knownMeter, "nobody");
+    }
+
+    @Benchmark
+    public boolean meterExistsForOtherUserMiss() {
+        return UserBillStorage.meterNumberExistsForOtherUser("NEW-METER", "nobody");
+    }
+
+    @Benchmark
+    public String meterOwner() {
+        return UserBillStorage.getMeterNumberOwner(knownMeter);
+    }
+
+    @Benchmark
+    public UserBillStorage.BillRecord recordByMeterAndMonthHit() {
+        return UserBillStorage.getRecordByMeterAndMonth(knownMeter, knownPeriod);
+    }
+
+    @Benchmark
+    public UserBillStorage.BillRecord recordByMeterAndMonthMiss() {
+        return UserBillStorage.getRecordByMeterAndMonth("NEW-METER", knownPeriod);
+    }
+}
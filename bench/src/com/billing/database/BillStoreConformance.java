@@ -0,0 +1,287 @@
+package com.billing.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the same checks against every BillStore engine, so they stay interchangeable, then
+ * times the calls BillingFrame makes on each of them.
+ *
+ * Usage: java com.billing.database.BillStoreConformance [engine ...] [users=N]
+ *   engine is memory, file, offheap or jdbc:<url> (e.g. jdbc:h2:mem:bills with the H2 jar on
+ *   the classpath); default: memory file offheap. users sets the throughput data size (default 2000,
+ *   12 bills each). Exits with status 1 if any check fails.
+ */
+public class BillStoreConformance {
+
+    private static final int BILLS_PER_USER = 12;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        List<String> engines = new ArrayList<>();
+        int users = 2000;
+        for (String arg : args) {
+            if (arg.startsWith("users=")) {
+                users = Integer.parseInt(arg.substring("users=".length()));
+            } else {
+                engines.add(arg);
+            }
+        }
+        if (engines.isEmpty()) engines.addAll(Arrays.asList("memory", "file", "offheap"));
+
+        File dir = Files.createTempDirectory("bill_store_conformance").toFile();
+        try {
+            for (String engine : engines) {
+                BillStore store = open(engine, dir);
+                try {
+                    System.out.println("== " + engine);
+                    checkConformance(store);
+                    measureThroughput(store, users);
+                } finally {
+                    store.close();
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * Opens an empty store: memory, file (a new user_bills.dat in {@code dir}), offheap (a new
+     * mapped file in {@code dir}) or jdbc:<url>.
+     */
+    static BillStore open(String engine, File dir) throws IOException {
+        if ("memory".equals(engine)) {
+            return new MemoryBillStore();
+        }
+        if ("file".equals(engine)) {
+            File file = File.createTempFile("user_bills", ".dat", dir);
+            UserBillStorage.useStorageFile(file.getPath());
+            return FileBillStore.INSTANCE;
+        }
+        if ("offheap".equals(engine)) {
+            return new OffHeapBillStore(new File(dir, "user_bills-" + System.nanoTime() + ".off"));
+        }
+        if (engine.startsWith("jdbc:")) {
+            return new JdbcBillStorage(engine, "", "", 500);
+        }
+        throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+
+    // ---- conformance ----
+
+    static void checkConformance(BillStore store) {
+        // Names are unique per run, so a database that already has bills does not get in the way
+        String run = Long.toString(System.nanoTime(), 36);
+        String alice = "alice-" + run;
+        String bob = "bob-" + run;
+        String meterA = "MTR-A-" + run;
+        String meterB = "MTR-B-" + run;
+        List<String> events = new ArrayList<>();
+        BillStoreListener listener = new BillStoreListener() {
+            @Override
+            public void billAdded(String username, UserBillStorage.BillRecord record) {
+                if (username.endsWith(run)) events.add("added " + username + " " + record.periodKey + " " + record.units);
+            }
+
+            @Override
+            public void billUpdated(String username, UserBillStorage.BillRecord record) {
+                if (username.endsWith(run)) events.add("updated " + username + " " + record.periodKey + " " + record.units);
+            }
+        };
+        store.addListener(listener);
+
+        check("unknown user has no bills", !store.hasCalculated(alice, 2024, 0)
+                && store.getCalculatedRecords(alice).isEmpty()
+                && store.getCalculatedRecordsNewestFirst(alice).isEmpty());
+        check("unknown user has an empty summary", summary(store.getSummary(alice)).equals(summary(BillSummary.EMPTY)));
+        check("unknown meter has no owner", store.getMeterNumberOwner(meterA) == null
+                && !store.meterNumberExistsForOtherUser(meterA, alice)
+                && store.getRecordByMeterAndMonth(meterA, "2024-01") == null);
+        check("null meter is never used", store.getMeterNumberOwner(null) == null
+                && !store.meterNumberExistsForOtherUser(null, alice)
+                && store.getRecordByMeterAndMonth(null, "2024-01") == null);
+
+        store.addCalculatedPaise(alice, 2024, 2, 120, 98_750, meterA);
+        check("added bill is found", store.hasCalculated(alice, 2024, 2) && !store.hasCalculated(alice, 2024, 3));
+        UserBillStorage.BillRecord march = single(store.getCalculatedRecords(alice));
+        check("added bill keeps its fields", march != null && "2024-03".equals(march.periodKey)
+                && march.units == 120 && march.amountPaise == 98_750 && meterA.equals(march.meterNumber));
+
+        store.addCalculatedPaise(alice, 2024, 2, 999, 1, meterA);
+        march = single(store.getCalculatedRecords(alice));
+        check("complete bill is not overwritten", march != null && march.units == 120 && march.amountPaise == 98_750);
+        check("summary counts stored bills", summary(store.getSummary(alice)).equals("1/1/120/98750/98750/98750"));
+
+        store.addCalculatedPaise(alice, 2023, 11, -1, -1, meterB);
+        check("bill without details only counts as a bill", summary(store.getSummary(alice, 2023)).equals("1/0/0/0/-1/-1")
+                && summary(store.getSummary(alice)).equals("2/1/120/98750/98750/98750"));
+        store.addCalculatedPaise(alice, 2023, 11, 40, 30_000, meterA);
+        List<UserBillStorage.BillRecord> all = store.getCalculatedRecords(alice);
+        check("incomplete bill is replaced", all.size() == 2 && all.get(0).units == 40
+                && all.get(0).amountPaise == 30_000 && meterA.equals(all.get(0).meterNumber));
+        check("replaced meter is released", store.getMeterNumberOwner(meterB) == null);
+
+        store.addCalculatedPaise(alice, 2024, 0, 10, 5_000, meterA);
+        store.addCalculatedPaise(alice, 2022, 5, 20, 9_000, null);
+        check("bills are oldest first", periods(store.getCalculatedRecords(alice))
+                .equals(Arrays.asList("2022-06", "2023-12", "2024-01", "2024-03")));
+        check("newest first is the reverse", periods(store.getCalculatedRecordsNewestFirst(alice))
+                .equals(Arrays.asList("2024-03", "2024-01", "2023-12", "2022-06")));
+        check("range is inclusive", periods(store.getCalculatedRecords(alice, "2023-12", "2024-01"))
+                .equals(Arrays.asList("2023-12", "2024-01")));
+        check("range without bills is empty", store.getCalculatedRecords(alice, "2020-01", "2021-12").isEmpty()
+                && store.getCalculatedRecords(alice, "2024-12", "2024-01").isEmpty());
+        check("summary is kept up to date", summary(store.getSummary(alice)).equals("4/4/190/142750/5000/98750"));
+        check("summary per year", summary(store.getSummary(alice, 2024)).equals("2/2/130/103750/5000/98750")
+                && summary(store.getSummary(alice, 2023)).equals("1/1/40/30000/30000/30000")
+                && summary(store.getSummary(alice, 2021)).equals(summary(BillSummary.EMPTY)));
+        check("bill without meter keeps null", store.getCalculatedRecords(alice, "2022-06", "2022-06").get(0).meterNumber == null);
+
+        check("meters compare ignoring case", alice.equals(store.getMeterNumberOwner(meterA.toLowerCase()))
+                && store.meterNumberExistsForOtherUser(meterA.toLowerCase(), bob)
+                && !store.meterNumberExistsForOtherUser(meterA, alice));
+        UserBillStorage.BillRecord byMeter = store.getRecordByMeterAndMonth(meterA.toLowerCase(), "2024-01");
+        check("bill by meter and month", byMeter != null && byMeter.units == 10 && byMeter.amountPaise == 5_000);
+        check("no bill on the meter that month", store.getRecordByMeterAndMonth(meterA, "2024-02") == null);
+
+        store.addCalculatedPaise(bob, 2024, 0, 1, 100, meterA.toLowerCase());
+        check("shared meter is used by others", store.meterNumberExistsForOtherUser(meterA, alice)
+                && store.meterNumberExistsForOtherUser(meterA, bob));
+
+        check("invalid period is rejected", throwsIllegalArgument(() -> store.addCalculatedPaise(alice, 99, 0, 1, 1, null))
+                && throwsIllegalArgument(() -> store.getCalculatedRecords(alice, "2024", "2024-01")));
+        check("record lists are read-only", throwsUnsupported(() -> store.getCalculatedRecords(alice).clear())
+                && throwsUnsupported(() -> store.getCalculatedRecordsNewestFirst(alice).clear()));
+
+        check("listeners see every change", events.equals(Arrays.asList(
+                "added " + alice + " 2024-03 120", "added " + alice + " 2023-12 -1", "updated " + alice + " 2023-12 40",
+                "added " + alice + " 2024-01 10", "added " + alice + " 2022-06 20", "added " + bob + " 2024-01 1")));
+        store.removeListener(listener);
+        store.addCalculatedPaise(bob, 2024, 1, 1, 100, null);
+        check("removed listener is not called", events.size() == 6);
+    }
+
+    private static UserBillStorage.BillRecord single(List<UserBillStorage.BillRecord> records) {
+        return records.size() == 1 ? records.get(0) : null;
+    }
+
+    private static String summary(BillSummary s) {
+        return s.bills + "/" + s.pricedBills + "/" + s.totalUnits + "/" + s.totalPaise + "/" + s.minPaise + "/" + s.maxPaise;
+    }
+
+    private static List<String> periods(List<UserBillStorage.BillRecord> records) {
+        List<String> keys = new ArrayList<>(records.size());
+        for (UserBillStorage.BillRecord r : records) {
+            keys.add(r.periodKey);
+        }
+        return keys;
+    }
+
+    private static boolean throwsIllegalArgument(Runnable call) {
+        try {
+            call.run();
+            return false;
+        } catch (IllegalArgumentException expected) {
+            return true;
+        }
+    }
+
+    private static boolean throwsUnsupported(Runnable call) {
+        try {
+            call.run();
+            return false;
+        } catch (UnsupportedOperationException expected) {
+            return true;
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        if (!passed) failures++;
+        System.out.println((passed ? "  ok    " : "  FAIL  ") + name);
+    }
+
+    // ---- throughput ----
+
+    static void measureThroughput(BillStore store, int users) {
+        String run = Long.toString(System.nanoTime(), 36);
+        int bills = users * BILLS_PER_USER;
+
+        long start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            for (int n = 0; n < BILLS_PER_USER; n++) {
+                store.addCalculatedPaise(user(run, u), 2024, n, n * 10, 15_000 + n * 700L, meter(run, u));
+            }
+        }
+        report("addCalculatedPaise", bills, System.nanoTime() - start);
+
+        long found = 0;
+        start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            for (int n = 0; n < BILLS_PER_USER; n++) {
+                if (store.hasCalculated(user(run, u), 2024, n)) found++;
+            }
+        }
+        report("hasCalculated", bills, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            found += store.getCalculatedRecordsNewestFirst(user(run, u)).size();
+        }
+        report("getCalculatedRecordsNewestFirst", users, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            if (!store.meterNumberExistsForOtherUser(meter(run, u), user(run, u))) found++;
+            if (store.getMeterNumberOwner(meter(run, u)) != null) found++;
+        }
+        report("meter owner checks", users * 2, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            if (store.getRecordByMeterAndMonth(meter(run, u), "2024-06") != null) found++;
+        }
+        report("getRecordByMeterAndMonth", users, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            found += store.getSummary(user(run, u), 2024).bills;
+        }
+        report("getSummary", users, System.nanoTime() - start);
+
+        check("every bill was read back", found == bills * 3L + users * 3L);
+    }
+
+    private static String user(String run, int u) {
+        return "tp-" + run + "-" + u;
+    }
+
+    private static String meter(String run, int u) {
+        return "TP-" + run + "-" + u;
+    }
+
+    private static void report(String operation, int calls, long nanos) {
+        System.out.printf("  %-32s %,12.0f ops/s  (%,d calls in %,d ms)%n",
+                operation, calls / (nanos / 1e9), calls, nanos / 1_000_000);
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,77 @@
+package com.billing.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load, save and add on UserBillStorage against a generated history file.
+ * Change the size with -p records=... and -p recordsPerUser=...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class UserBillStorageBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    public int records;
+
+    @Param({ "24" })
+    public int recordsPerUser;
+
+    private File dataFile;
+    private int nextUser;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        dataFile = File.createTempFile("user_bills_bench", ".dat");
+        BillDataGenerator.write(dataFile, records, recordsPerUser);
+    }
+
+    @Setup(Level.Iteration)
+    public void reload() {
+        UserBillStorage.useStorageFile(dataFile.getPath());
+        nextUser = BillDataGenerator.userCount(records, recordsPerUser);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        dataFile.delete();
+    }
+
+    @Benchmark
+    public void load() {
+        UserBillStorage.useStorageFile(dataFile.getPath());
+    }
+
+    @Benchmark
+    public void save() {
+        UserBillStorage.save();
+    }
+
+    /**
+     * One new bill for a user that has none yet, the way BillingFrame adds one.
+     */
+    @Benchmark
+    public void addCalculated() {
+        int user = nextUser++;
+        UserBillStorage.addCalculated(BillDataGenerator.userName(user), 2024, 11, 250, 1700.0,
+                BillDataGenerator.meterNumber(user));
+    }
+}
@@ -0,0 +1,88 @@
+package com.billing.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Readers and writers using UserBillStorage at the same time, like the UI, a batch run and
+ * an exporter would. "reads" alone shows how read throughput scales with -t; "mixed" runs
+ * three readers next to one writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class UserBillStorageConcurrencyBenchmark {
+
+    @Param({ "100000" })
+    public int records;
+
+    @Param({ "24" })
+    public int recordsPerUser;
+
+    private File dataFile;
+    private int users;
+    private final AtomicInteger nextUser = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dataFile = File.createTempFile("user_bills_bench", ".dat");
+        BillDataGenerator.write(dataFile, records, recordsPerUser);
+        UserBillStorage.useStorageFile(dataFile.getPath());
+        users = BillDataGenerator.userCount(records, recordsPerUser);
+        nextUser.set(users);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        new File(dataFile.getPath() + ".log").delete();
+        dataFile.delete();
+    }
+
+    private String randomUser() {
+        return BillDataGenerator.userName(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    public int reads() {
+        String user = randomUser();
+        boolean done = UserBillStorage.hasCalculated(user, 2024, 11);
+        return UserBillStorage.getCalculatedRecords(user).size() + (done ? 1 : 0);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public int mixedReads() {
+        return reads();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedWrites() {
+        int user = nextUser.getAndIncrement();
+        UserBillStorage.addCalculated(BillDataGenerator.userName(user), 2024, 11, 250, 1700.0,
+                BillDataGenerator.meterNumber(user));
+    }
+}
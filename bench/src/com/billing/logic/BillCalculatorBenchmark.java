@@ -0,0 +1,69 @@
+package com.billing.logic;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BillCalculator on random unit readings: one bill at a time and the batch API.
+ * Readings go up to maxUnits, so values above the lookup table size hit the formula path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BillCalculatorBenchmark {
+
+    @Param({ "10000" })
+    public int meters;
+
+    @Param({ "2000", "20000" })
+    public int maxUnits;
+
+    private int[] units;
+    private long[] charges;
+    private long[] slabs;
+    private long[] totals;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        units = new int[meters];
+        for (int i = 0; i < meters; i++) {
+            units[i] = random.nextInt(maxUnits);
+        }
+        charges = new long[meters];
+        slabs = new long[meters * BillCalculator.getTariff().getSlabCount()];
+        totals = new long[meters];
+    }
+
+    /**
+     * calculate() for every meter; the score is per batch of {@code meters} bills.
+     */
+    @Benchmark
+    public long calculate() {
+        long sum = 0;
+        for (int u : units) {
+            sum += BillCalculator.calculate(u).totalAmountDuePaise;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long[] calculateBatch() {
+        BillCalculator.calculateBatch(units, charges, slabs, totals);
+        return totals;
+    }
+}
@@ -0,0 +1,45 @@
+package com.billing.security;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PBKDF2 hashing as done on signup (hashPassword) and login (verifyPassword).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SecurityUtilBenchmark {
+
+    private final char[] password = "correct horse battery staple".toCharArray();
+    private String salt;
+    private String hash;
+
+    @Setup
+    public void setup() {
+        salt = SecurityUtil.generateSalt();
+        hash = SecurityUtil.hashPassword(password, salt);
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return SecurityUtil.hashPassword(password, salt);
+    }
+
+    @Benchmark
+    public boolean verifyPassword() {
+        return SecurityUtil.verifyPassword(password, salt, hash);
+    }
+}
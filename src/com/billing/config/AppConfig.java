@@ -49,6 +49,184 @@ public final class AppConfig {
     public static String getDbPassword() {
         return PROPS.getProperty("db.password", "");
     }
+
+    /**
+     * Where bill history is kept: file (user_bills.dat), jdbc (the db.* database), offheap
+     * (storage.offheap.file, outside the Java heap) or memory (nothing is saved) (default: file)
+     */
+    public static String getBillStorageMode() {
+        String mode = PROPS.getProperty("storage.mode", "file").trim().toLowerCase();
+        return "jdbc".equals(mode) || "memory".equals(mode) || "offheap".equals(mode) ? mode : "file";
+    }
+
+    /**
+     * File the offheap store maps its bills from, empty to keep them in direct memory without
+     * saving them (default: user_bills.off)
+     */
+    public static String getBillOffHeapFile() {
+        return PROPS.getProperty("storage.offheap.file", "user_bills.off").trim();
+    }
+
+    /**
+     * Number of bills per JDBC batch when bills are written in bulk (default: 500)
+     */
+    public static int getBillDbBatchSize() {
+        return (int) Math.max(1, getLong("storage.db.batch", 500));
+    }
+
+    /**
+     * File holding the bill history (default: user_bills.dat)
+     */
+    public static String getBillStorageFile() {
+        return PROPS.getProperty("storage.file", "user_bills.dat").trim();
+    }
+
+    /**
+     * Snapshot format of the bill history: text or binary (default: text)
+     */
+    public static String getBillStorageFormat() {
+        String format = PROPS.getProperty("storage.format", "text").trim().toLowerCase();
+        return "binary".equals(format) ? format : "text";
+    }
+
+    /**
+     * How the bill history is loaded: eager (all users at startup) or lazy (an index at startup,
+     * each user's bills on first access) (default: eager)
+     */
+    public static String getBillStorageLoad() {
+        String load = PROPS.getProperty("storage.load", "eager").trim().toLowerCase();
+        return "lazy".equals(load) ? load : "eager";
+    }
+
+    /**
+     * Number of files the bill history is split into by username hash (default: 1, a single user_bills.dat)
+     */
+    public static int getBillShards() {
+        return (int) Math.max(1, getLong("storage.shards", 1));
+    }
+
+    /**
+     * Number of threads that load a text bill history eagerly, each taking one chunk of
+     * the file (default: 0, one per available processor)
+     */
+    public static int getBillLoadThreads() {
+        long threads = getLong("storage.load.threads", 0);
+        return threads > 0 ? (int) threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Bills from more than this many years before the current one are moved to compressed
+     * yearly archive files and read only when asked for (default: 0, keep everything hot)
+     */
+    public static int getBillArchiveYears() {
+        return (int) Math.max(0, getLong("storage.archive.years", 0));
+    }
+
+    /**
+     * True if several processes use the same bill history files at once, so they lock the
+     * files and pick up each other's bills (default: false)
+     */
+    public static boolean isBillStorageShared() {
+        return Boolean.parseBoolean(PROPS.getProperty("storage.shared", "false").trim());
+    }
+
+    /**
+     * How often, in milliseconds, a shared bill history is checked for bills added by other
+     * processes (default: 50)
+     */
+    public static long getBillSharedPollMillis() {
+        return Math.max(1, getLong("storage.shared.poll.ms", 50));
+    }
+
+    /**
+     * Number of users whose bills are kept in memory when loading lazily (default: 1000)
+     */
+    public static int getBillCacheUsers() {
+        return (int) Math.max(1, getLong("storage.cache.users", 1000));
+    }
+
+    /**
+     * Highest false-positive rate of the Bloom filters that answer lookups of unknown meters and
+     * months without touching the bill maps, 0 turns them off (default: 0.01)
+     */
+    public static double getBillFilterFalsePositiveRate() {
+        double rate = getDouble("storage.filter.fpp", 0.01);
+        return rate > 0 && rate < 1 ? rate : 0;
+    }
+
+    /**
+     * Number of logged bills after which the bill log is folded into a new snapshot (default: 1000)
+     */
+    public static int getBillLogCompactEntries() {
+        return (int) Math.max(1, getLong("storage.compact.entries", 1000));
+    }
+
+    /**
+     * Longest time in milliseconds a new bill waits before the background writer appends it
+     * to the bill log together with any others that came in meanwhile (default: 50)
+     */
+    public static long getBillFlushMillis() {
+        return Math.max(0, getLong("storage.flush.ms", 50));
+    }
+
+    /**
+     * How far a bill is written before it counts as saved: buffered (handed to the OS by the
+     * background writer), fsync (the writer also forces it to disk) or sync (like fsync, and
+     * saving a bill waits for it) (default: buffered)
+     */
+    public static String getBillDurability() {
+        String durability = PROPS.getProperty("storage.durability", "buffered").trim().toLowerCase();
+        return "fsync".equals(durability) || "sync".equals(durability) ? durability : "buffered";
+    }
+
+    /**
+     * Fixed service charge added to every bill (default: 150.00)
+     */
+    public static String getTariffServiceCharge() {
+        return PROPS.getProperty("tariff.service.charge", "150.00");
+    }
+
+    /**
+     * Slab limits and rates as limit:rate pairs, last slab open-ended with '*'
+     * (default: 100:5.00,300:7.00,500:9.00,*:11.00)
+     */
+    public static String getTariffSlabs() {
+        return PROPS.getProperty("tariff.slabs", "100:5.00,300:7.00,500:9.00,*:11.00");
+    }
+
+    /**
+     * Bills up to this many units are precomputed in a lookup table, 0 turns it off (default: 2000)
+     */
+    public static int getBillTableUnits() {
+        return (int) getLong("tariff.table.units", 2000);
+    }
+
+    /**
+     * Memory limit for the bill lookup table in bytes (default: 1048576)
+     */
+    public static long getBillTableMaxBytes() {
+        return getLong("tariff.table.max.bytes", 1L << 20);
+    }
+
+    private static double getDouble(String key, double defaultValue) {
+        String value = PROPS.getProperty(key);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long getLong(String key, long defaultValue) {
+        String value = PROPS.getProperty(key);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 }
 
 
@@ -0,0 +1,291 @@
+package com.billing.database;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One year of one shard's cold bills (storage.archive.years), e.g. user_bills.2015.arc.
+ * Old years are rarely read, so they are kept out of the snapshot and out of memory and read
+ * back a block at a time when a query asks for them.
+ *
+ * Layout (big-endian):
+ *   header   magic "UBA1", version, year, blockCount (ints), generation (long, random)
+ *   blocks   blockCount GZIP members, each holding whole snapshot text lines
+ *            (username:YYYY-MM|units|amount|meter,...) of about BLOCK_BYTES, users in name order
+ *   meters   a GZIP member: pairCount (int), then meter number and username (UTF) pairs
+ *   index    each block's first username (UTF) and offset (long), then the meters offset (long)
+ *   trailer  the index offset (long)
+ * Opening an archive reads only the index; the meter pairs are read once at startup for the
+ * meter owner index, and a block is read and unpacked when one of its users is asked for.
+ *
+ * An archive is replaced as a whole when more bills move into its year, by this process or
+ * (storage.shared) another one, while queries may still use the index they opened. Each read
+ * checks the generation in the header first and throws {@link ChangedException} if the file
+ * is no longer the one the index belongs to.
+ */
+final class BillArchive {
+
+    static final int MAGIC = 0x55424131; // "UBA1"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    // Uncompressed text per block: a query unpacks one block, so this bounds its cost
+    private static final int BLOCK_BYTES = 64 << 10;
+    // Unpacked blocks kept per archive, most recently used
+    private static final int CACHED_BLOCKS = 8;
+
+    private final File file;
+    private final int year;
+    private final long generation;
+    private final String[] firstUsers;
+    // Start of each block, then the start of the meters section
+    private final long[] offsets;
+    private final long indexOffset;
+    private final Map<Integer, Map<String, UserBills>> blocks = new LinkedHashMap<Integer, Map<String, UserBills>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, UserBills>> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    private BillArchive(File file, int year, long generation, String[] firstUsers, long[] offsets, long indexOffset) {
+        this.file = file;
+        this.year = year;
+        this.generation = generation;
+        this.firstUsers = firstUsers;
+        this.offsets = offsets;
+        this.indexOffset = indexOffset;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getYear() {
+        return year;
+    }
+
+    /**
+     * Reads an archive's index.
+     */
+    static BillArchive open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < HEADER_BYTES + 8 || in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a bill archive");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            int year = in.readInt();
+            int blockCount = in.readInt();
+            long generation = in.readLong();
+            in.seek(in.length() - 8);
+            long indexOffset = in.readLong();
+            if (blockCount < 0 || indexOffset < HEADER_BYTES || indexOffset > in.length() - 8) {
+                throw new IOException(file + " has a damaged index");
+            }
+            byte[] index = new byte[(int) (in.length() - 8 - indexOffset)];
+            in.seek(indexOffset);
+            in.readFully(index);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(index));
+            String[] firstUsers = new String[blockCount];
+            long[] offsets = new long[blockCount + 1];
+            for (int i = 0; i < blockCount; i++) {
+                firstUsers[i] = data.readUTF();
+                offsets[i] = data.readLong();
+            }
+            offsets[blockCount] = data.readLong();
+            return new BillArchive(file, year, generation, firstUsers, offsets, indexOffset);
+        }
+    }
+
+    /**
+     * Writes the given bills (all of one year, users in String order, e.g. a TreeMap) as an archive.
+     * @return the number of bills written
+     */
+    static long write(File file, int year, Map<String, UserBills> users, MeterDictionary meters) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        List<String> firstUsers = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        ByteArrayOutputStream pairs = new ByteArrayOutputStream();
+        DataOutputStream pairData = new DataOutputStream(pairs);
+        int pairCount = 0;
+        Set<Integer> userMeters = new HashSet<>();
+        long bills = 0;
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(year);
+            out.writeInt(0); // block count, set once known
+            out.writeLong(ThreadLocalRandom.current().nextLong());
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+            BufferedWriter text = new BufferedWriter(new OutputStreamWriter(block, charset));
+            StringBuilder sb = new StringBuilder();
+            String first = null;
+            for (Map.Entry<String, UserBills> entry : users.entrySet()) {
+                UserBills userBills = entry.getValue();
+                if (first == null) first = entry.getKey();
+                TextBillFile.writeUser(text, sb, entry.getKey(), userBills, meters);
+                bills += userBills.size();
+                userMeters.clear();
+                for (int i = 0; i < userBills.size(); i++) {
+                    int meterId = userBills.meterId(i);
+                    if (meterId != MeterDictionary.NO_METER && userMeters.add(meterId)) {
+                        pairData.writeUTF(meters.name(meterId));
+                        pairData.writeUTF(entry.getKey());
+                        pairCount++;
+                    }
+                }
+                if (block.size() >= BLOCK_BYTES) {
+                    text.flush();
+                    firstUsers.add(first);
+                    offsets.add(out.getFilePointer());
+                    out.write(gzip(block.toByteArray()));
+                    block.reset();
+                    first = null;
+                }
+            }
+            text.flush();
+            if (first != null) {
+                firstUsers.add(first);
+                offsets.add(out.getFilePointer());
+                out.write(gzip(block.toByteArray()));
+            }
+
+            long metersOffset = out.getFilePointer();
+            pairData.flush();
+            ByteArrayOutputStream meterSection = new ByteArrayOutputStream(pairs.size() + 4);
+            new DataOutputStream(meterSection).writeInt(pairCount);
+            pairs.writeTo(meterSection);
+            out.write(gzip(meterSection.toByteArray()));
+
+            long indexOffset = out.getFilePointer();
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexData = new DataOutputStream(index);
+            for (int i = 0; i < firstUsers.size(); i++) {
+                indexData.writeUTF(firstUsers.get(i));
+                indexData.writeLong(offsets.get(i));
+            }
+            indexData.writeLong(metersOffset);
+            indexData.writeLong(indexOffset);
+            indexData.flush();
+            out.write(index.toByteArray());
+            out.seek(12);
+            out.writeInt(firstUsers.size());
+        }
+        return bills;
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(packed)) {
+            out.write(bytes);
+        }
+        return packed.toByteArray();
+    }
+
+    /**
+     * The user's bills in this archive, or null if there are none. Unpacks the user's block
+     * unless it was one of the last few read.
+     */
+    UserBills read(String username, MeterDictionary meters) throws IOException {
+        // The last block whose first user does not sort after this one
+        int i = Arrays.binarySearch(firstUsers, username);
+        if (i < 0) i = -i - 2;
+        if (i < 0) return null;
+        return block(i, meters).get(username);
+    }
+
+    private Map<String, UserBills> block(int i, MeterDictionary meters) throws IOException {
+        synchronized (blocks) {
+            Map<String, UserBills> cached = blocks.get(i);
+            if (cached != null) return cached;
+        }
+        Map<String, UserBills> users = new HashMap<>();
+        UserBills.Collector collector = new UserBills.Collector(users, meters);
+        readBlock(i, collector);
+        collector.finish();
+        synchronized (blocks) {
+            blocks.put(i, users);
+        }
+        return users;
+    }
+
+    private void readBlock(int i, BillSink sink) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(readBytes(offsets[i], offsets[i + 1])))) {
+            ByteTokenizer.forEachLine(in, (bytes, from, to) -> TextBillFile.parseLine(bytes, from, to, charset, sink));
+        }
+    }
+
+    /**
+     * Passes every bill in the archive to the sink, users in name order.
+     */
+    void readAll(BillSink sink) throws IOException {
+        for (int i = 0; i < firstUsers.length; i++) {
+            readBlock(i, sink);
+        }
+    }
+
+    /**
+     * Passes each (user, meter number) pair of the archive's bills to {@code meterUse}.
+     */
+    void readMeters(BiConsumer<String, String> meterUse) throws IOException {
+        byte[] packed = readBytes(offsets[firstUsers.length], indexOffset);
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(packed)))) {
+            int pairs = in.readInt();
+            for (int i = 0; i < pairs; i++) {
+                String meter = in.readUTF();
+                meterUse.accept(in.readUTF(), meter);
+            }
+        }
+    }
+
+    // Opened for each read, so that the file can be replaced while the archive is in use
+    private byte[] readBytes(long from, long to) throws IOException {
+        byte[] bytes = new byte[(int) (to - from)];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(HEADER_BYTES - 8);
+            if (in.length() < HEADER_BYTES || in.readLong() != generation) throw new ChangedException(file);
+            in.seek(from);
+            in.readFully(bytes);
+        } catch (FileNotFoundException e) {
+            throw new ChangedException(file);
+        }
+        return bytes;
+    }
+
+    /**
+     * The archive file was replaced (or removed) since it was opened; open it again.
+     */
+    static final class ChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChangedException(File file) {
+            super(file + " was replaced since it was opened");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.billing.database;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The listeners of one bill store. Listeners are added and removed rarely and called on
+ * every save, so they are kept in a copy-on-write list that is read without a lock.
+ * A listener that throws is reported and does not affect the save or the other listeners.
+ */
+final class BillEvents {
+
+    private final List<BillStoreListener> listeners = new CopyOnWriteArrayList<>();
+
+    void add(BillStoreListener listener) {
+        listeners.add(Objects.requireNonNull(listener, "listener"));
+    }
+
+    void remove(BillStoreListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * True if nobody listens, so a store can skip building the event.
+     */
+    boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    void added(String username, UserBillStorage.BillRecord record) {
+        for (BillStoreListener listener : listeners) {
+            try {
+                listener.billAdded(username, record);
+            } catch (RuntimeException e) {
+                System.err.println("Bill listener failed on a new bill of " + username + ": " + e);
+            }
+        }
+    }
+
+    void updated(String username, UserBillStorage.BillRecord record) {
+        for (BillStoreListener listener : listeners) {
+            try {
+                listener.billUpdated(username, record);
+            } catch (RuntimeException e) {
+                System.err.println("Bill listener failed on an updated bill of " + username + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.billing.database;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Where each user's bills are in a snapshot file, so that lazy loading (storage.load=lazy)
+ * can read one user's line or records on first access instead of the whole history.
+ * Built by a single pass over the file that keeps only byte offsets, never the bills.
+ */
+final class BillFileIndex {
+
+    private static final long[] NO_RANGES = new long[0];
+
+    private final File file;
+    private final boolean binary;
+    // username -> byte ranges in the file as offset, length pairs (normally just one), in file order
+    private final Map<String, long[]> ranges = new LinkedHashMap<>();
+    // Binary files only: meter id -> meter number
+    private String[] meters = new String[0];
+
+    private BillFileIndex(File file, boolean binary) {
+        this.file = file;
+        this.binary = binary;
+    }
+
+    /**
+     * Indexes a text or binary snapshot. {@code meterUse} is told which meters each user has bills on,
+     * so the meter owner index can be built in the same pass, and {@code billUse}, unless null,
+     * about the period (yyyymm) of every bill.
+     */
+    static BillFileIndex build(File file, BiConsumer<String, String> meterUse, ObjIntConsumer<String> billUse)
+            throws IOException {
+        BillFileIndex index = new BillFileIndex(file, BinaryBillFile.isBinary(file));
+        if (index.binary) {
+            index.meters = BinaryBillFile.index(file, index, meterUse, billUse);
+        } else {
+            TextBillFile.index(file, index, meterUse, billUse);
+        }
+        return index;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * The same index for the file under its new name, e.g. once a snapshot written to a
+     * temporary file has replaced user_bills.dat.
+     */
+    BillFileIndex renamedTo(File renamed) {
+        BillFileIndex index = new BillFileIndex(renamed, binary);
+        index.ranges.putAll(ranges);
+        index.meters = meters;
+        return index;
+    }
+
+    void addUser(String username) {
+        ranges.putIfAbsent(username, NO_RANGES);
+    }
+
+    void addRange(String username, long offset, long length) {
+        long[] existing = ranges.getOrDefault(username, NO_RANGES);
+        long[] grown = new long[existing.length + 2];
+        System.arraycopy(existing, 0, grown, 0, existing.length);
+        grown[existing.length] = offset;
+        grown[existing.length + 1] = length;
+        ranges.put(username, grown);
+    }
+
+    boolean contains(String username) {
+        return ranges.containsKey(username);
+    }
+
+    Set<String> users() {
+        return Collections.unmodifiableSet(ranges.keySet());
+    }
+
+    /**
+     * Reads just this user's bills from the file.
+     */
+    void read(String username, BillSink sink) throws IOException {
+        long[] userRanges = ranges.get(username);
+        if (userRanges == null) return;
+        sink.user(username);
+        if (userRanges.length == 0) return;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < userRanges.length; i += 2) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) userRanges[i + 1]);
+                while (buffer.hasRemaining()) {
+                    if (ch.read(buffer, userRanges[i] + buffer.position()) < 0) {
+                        throw new EOFException("Bill file " + file + " is shorter than its index");
+                    }
+                }
+                buffer.flip();
+                if (binary) {
+                    BinaryBillFile.readRecords(buffer, username, meters, sink);
+                } else {
+                    TextBillFile.parseLine(buffer.array(), 0, buffer.limit(), Charset.defaultCharset(), sink);
+                }
+            }
+        }
+    }
+}
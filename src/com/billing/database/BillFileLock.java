@@ -0,0 +1,165 @@
+package com.billing.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets several processes share one bill history (storage.shared=true). Each shard has a
+ * small lock file next to its snapshot, user_bills.dat.lock, and every process locks it
+ * (FileChannel.lock) while it appends to the log, reads what others appended, or swaps in
+ * a new snapshot, so no two of them change the files at the same time.
+ *
+ * The file also says how far the files have come, so a process can tell cheaply whether it
+ * is behind and follow along instead of reloading:
+ *   sequence (long)  even; raised by one when a process starts replacing the snapshot and
+ *                    shortening the log, and by one more when it is done
+ *   dropped (long)   bytes cut from the front of the log by that last snapshot
+ * A process that last read the log at position p before sequence s sees s + 2 afterwards:
+ * the log it knew now starts at byte {@code dropped}, and the bytes it had not read yet
+ * before that point are still in the previous log (see BillLog).
+ *
+ * FileLock is held per process, not per thread, so threads take a local lock first. It is one
+ * lock for all shards: the OS sees a process that holds one shard's file while waiting for
+ * another's as a possible deadlock with a process doing the opposite, and fails the lock
+ * (EDEADLK) even though the two waits come from independent threads. Only loading holds several
+ * files at once, and it takes them in shard order. If the file system cannot lock files, a
+ * warning is printed and the process goes on without, as it would without storage.shared.
+ */
+final class BillFileLock {
+
+    private static final int BYTES = 16;
+
+    private final File file;
+    private final FileChannel channel;
+    private static final ReentrantLock LOCAL = new ReentrantLock();
+    private FileLock held;
+    private boolean warned;
+
+    BillFileLock(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static File lockFile(String snapshotFile) {
+        return new File(snapshotFile + ".lock");
+    }
+
+    /**
+     * Waits until no other thread or process holds the lock, then takes it.
+     */
+    void lock() {
+        LOCAL.lock();
+        try {
+            held = channel.lock();
+        } catch (IOException e) {
+            if (!warned) {
+                System.err.println("Cannot lock " + file + ", other processes may overwrite bills: " + e.getMessage());
+                warned = true;
+            }
+        } catch (RuntimeException e) {
+            LOCAL.unlock();
+            throw e;
+        }
+    }
+
+    void unlock() {
+        try {
+            if (held != null) held.release();
+        } catch (IOException e) {
+            System.err.println("Failed to unlock " + file + ": " + e.getMessage());
+        } finally {
+            held = null;
+            LOCAL.unlock();
+        }
+    }
+
+    /**
+     * The current sequence; the caller holds the lock.
+     */
+    long sequence() throws IOException {
+        return read()[0];
+    }
+
+    /**
+     * Bytes the last snapshot cut from the front of the log; the caller holds the lock.
+     */
+    long droppedBytes() throws IOException {
+        return read()[1];
+    }
+
+    /**
+     * The sequence read without locking, for checking whether anything changed. A value read
+     * while another process writes it only makes the caller look again under the lock.
+     */
+    long peekSequence() {
+        try {
+            return read()[0];
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Marks the snapshot and log as being replaced (odd sequence); the caller holds the lock.
+     * A crash before {@link #endChange} leaves the mark, which tells the others to reload.
+     */
+    void beginChange() throws IOException {
+        long[] values = read();
+        write(values[0] | 1, values[1]);
+    }
+
+    /**
+     * Marks the change as done: {@code dropped} bytes were cut from the front of the log.
+     * @return the new sequence
+     */
+    long endChange(long dropped) throws IOException {
+        long sequence = (read()[0] | 1) + 1;
+        write(sequence, dropped);
+        return sequence;
+    }
+
+    /**
+     * Called while loading everything: a change left unfinished by a crash no longer matters
+     * to a process that reads the files from scratch, so its mark is cleared.
+     * @return the current sequence
+     */
+    long repair() throws IOException {
+        long[] values = read();
+        if ((values[0] & 1) == 0) return values[0];
+        write(values[0] + 1, 0);
+        return values[0] + 1;
+    }
+
+    private long[] read() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+        int n;
+        do {
+            n = channel.read(buffer, buffer.position());
+        } while (n > 0 && buffer.hasRemaining());
+        // A new lock file is empty: sequence 0, nothing dropped
+        if (buffer.position() < BYTES) return new long[2];
+        return new long[] { buffer.getLong(0), buffer.getLong(8) };
+    }
+
+    private void write(long sequence, long dropped) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+        buffer.putLong(0, sequence).putLong(8, dropped);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.billing.database;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Append-only log of bill events that sits next to the user_bills.dat snapshot.
+ * Every new bill is one short line at the end of this file instead of a rewrite of the
+ * whole history. When it gets long, its events are folded into a new snapshot and dropped.
+ *
+ * Each line uses the snapshot's own format with a single record: username:YYYY-MM|units|amount|meter
+ * All methods are synchronized; only the background BillWriter appends, a group of lines at a time.
+ *
+ * A shared log (storage.shared, see BillFileLock) is also appended to by other processes, so
+ * it is opened for each group instead of once, and reading can resume where it stopped. When
+ * a snapshot shortens it, the old log is kept as <log>.prev until the next snapshot, for the
+ * processes that had not read all of it yet.
+ */
+final class BillLog {
+
+    private final File file;
+    private final boolean shared;
+    private FileOutputStream out;
+    private BufferedWriter writer;
+    private int entries;
+    private boolean snapshotRequested;
+
+    BillLog(File file) {
+        this(file, false);
+    }
+
+    BillLog(File file, boolean shared) {
+        this.file = file;
+        this.shared = shared;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    File getPreviousFile() {
+        return new File(file.getPath() + ".prev");
+    }
+
+    /**
+     * Number of events in the log since it was last emptied.
+     */
+    synchronized int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Passes every complete line of the log to the handler, oldest first.
+     * A last line without a newline is a write that was cut short (e.g. a crash) and is skipped.
+     * @return the length of the complete lines, where {@link #readFrom} goes on
+     */
+    synchronized long replay(ByteTokenizer.LineHandler handler) throws IOException {
+        entries = 0;
+        return readFrom(0, handler);
+    }
+
+    /**
+     * Passes the complete lines from byte {@code position} on to the handler, e.g. the ones
+     * other processes appended to a shared log since it was last read.
+     * @return the offset after the last complete line
+     */
+    synchronized long readFrom(long position, ByteTokenizer.LineHandler handler) throws IOException {
+        return readLines(file, position, Long.MAX_VALUE, (bytes, start, end) -> {
+            handler.line(bytes, start, end);
+            entries++;
+        });
+    }
+
+    /**
+     * Passes the complete lines in bytes [from, to) of the log as it was before the last
+     * snapshot (see the class comment) to the handler.
+     * @throws IOException also if that log no longer holds those bytes
+     */
+    synchronized void readPrevious(long from, long to, ByteTokenizer.LineHandler handler) throws IOException {
+        File previous = getPreviousFile();
+        if (readLines(previous, from, to, handler) != to) {
+            throw new IOException(previous + " does not hold the bills up to byte " + to);
+        }
+    }
+
+    private static long readLines(File file, long from, long to, ByteTokenizer.LineHandler handler) throws IOException {
+        if (!file.exists()) return from;
+        byte[] content;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long end = Math.min(to, in.length());
+            if (end <= from) return from;
+            content = new byte[(int) (end - from)];
+            in.seek(from);
+            in.readFully(content);
+        }
+        int start = 0;
+        int end;
+        while ((end = ByteTokenizer.indexOf(content, start, content.length, '\n')) >= 0) {
+            int lineStart = start;
+            start = end + 1;
+            if (ByteTokenizer.isBlank(content, lineStart, end)) continue;
+            handler.line(content, lineStart, end);
+        }
+        return from + start;
+    }
+
+    /**
+     * Appends events with a single flush, and if {@code force} is set, waits until
+     * they are on the disk itself rather than only handed to the OS.
+     * @return the length of the log afterwards
+     * @throws IOException if the events could not be written; whatever part of them reached
+     *         the file is cut off again, so appending them once more leaves no torn line
+     */
+    synchronized long appendAll(List<String> lines, boolean force) throws IOException {
+        if (writer == null) {
+            out = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(out));
+        }
+        long before = out.getChannel().size();
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            if (force) {
+                out.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            truncate(before);
+            throw e;
+        }
+        entries += lines.size();
+        long length = out.getChannel().size();
+        // Another process may replace a shared log, so it is not kept open
+        if (shared) close();
+        return length;
+    }
+
+    /**
+     * Drops the writer and cuts the log back to {@code length} bytes after a failed append.
+     */
+    private void truncate(long length) {
+        // Closing may write out the rest of the buffer, which is cut off below as well
+        close();
+        try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+            if (log.length() > length) log.setLength(length);
+        } catch (IOException e) {
+            System.err.println("Failed to cut a failed append off the bill log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called when the state for a snapshot has been picked: clears a pending snapshot request
+     * and returns how many bytes of the log that snapshot will hold.
+     */
+    synchronized long markSnapshot() {
+        snapshotRequested = false;
+        return file.length();
+    }
+
+    /**
+     * Drops the first {@code length} bytes of events, once a snapshot holds them. Events
+     * appended while the snapshot was being written are kept; the shortened log replaces
+     * the old one in a single rename. A shared log is first kept as <log>.prev.
+     */
+    synchronized void dropSnapshotted(long length) throws IOException {
+        close();
+        long size = file.length();
+        byte[] tail = new byte[(int) Math.max(0, size - length)];
+        if (tail.length > 0) {
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.seek(length);
+                in.readFully(tail);
+            }
+        }
+        if (shared && file.exists()) {
+            BillShards.replaceFile(file, getPreviousFile());
+        }
+        if (tail.length == 0) {
+            Files.deleteIfExists(file.toPath());
+            entries = 0;
+            return;
+        }
+        int kept = 0;
+        for (byte b : tail) {
+            if (b == '\n') kept++;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), tail);
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        entries = kept;
+    }
+
+    /**
+     * Another process folded this shared log into its snapshot: events are counted afresh.
+     */
+    synchronized void snapshotWrittenElsewhere() {
+        entries = 0;
+    }
+
+    /**
+     * Asks for a snapshot at the next opportunity, e.g. because an append failed.
+     */
+    synchronized void requestSnapshot() {
+        snapshotRequested = true;
+    }
+
+    /**
+     * True once the log holds at least {@code threshold} events or a snapshot was requested.
+     */
+    synchronized boolean needsSnapshot(int threshold) {
+        return snapshotRequested || entries >= threshold;
+    }
+
+    synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close bill log: " + e.getMessage());
+        }
+        writer = null;
+        out = null;
+    }
+}
@@ -0,0 +1,51 @@
+package com.billing.database;
+
+/**
+ * Billing period keys. Kept apart from UserBillStorage so that the file readers and
+ * converters can use them without loading the whole bill history.
+ */
+final class BillPeriods {
+
+    private BillPeriods() {}
+
+    /**
+     * Returns a canonical key like YYYY-MM (01-12) for given inputs.
+     */
+    static String toPeriodKey(int year, int monthIndexZeroBased) {
+        int oneBasedMonth = monthIndexZeroBased + 1;
+        String month = (oneBasedMonth < 10 ? "0" : "") + oneBasedMonth;
+        return year + "-" + month;
+    }
+
+    /**
+     * Returns the YYYY-MM key of a packed yyyymm period.
+     */
+    static String toPeriodKey(int packedPeriod) {
+        return toPeriodKey(packedPeriod / 100, packedPeriod % 100 - 1);
+    }
+
+    /**
+     * Packs a year and zero-based month the same way as their YYYY-MM key. Returns -1 if the
+     * key would not be a valid YYYY-MM key.
+     */
+    static int toPackedPeriod(int year, int monthIndexZeroBased) {
+        int oneBasedMonth = monthIndexZeroBased + 1;
+        if (year < 1000 || year > 9999 || oneBasedMonth < 0 || oneBasedMonth > 99) return -1;
+        return year * 100 + oneBasedMonth;
+    }
+
+    /**
+     * Packs a YYYY-MM key into an int yyyymm, e.g. "2024-03" -> 202403. Returns -1 if the key is malformed.
+     */
+    static int toPackedPeriod(String periodKey) {
+        if (periodKey == null || periodKey.length() != 7 || periodKey.charAt(4) != '-') return -1;
+        int packed = 0;
+        for (int i = 0; i < 7; i++) {
+            if (i == 4) continue;
+            char c = periodKey.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            packed = packed * 10 + (c - '0');
+        }
+        return packed;
+    }
+}
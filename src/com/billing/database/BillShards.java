@@ -0,0 +1,429 @@
+package com.billing.database;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where the files of the bill history are when it is split into storage.shards shards by
+ * username hash. Each shard has its own snapshot and log, so saving a bill appends to (and
+ * compacts) only its user's shard, and shards are loaded in parallel.
+ *
+ * With one shard the files are the usual user_bills.dat, user_bills.bin and user_bills.dat.log.
+ * Shard i of n is user_bills-i-of-n.dat, user_bills-i-of-n.bin and user_bills-i-of-n.dat.log.
+ * The shard count is part of the names, so files of another layout are never loaded by
+ * mistake; {@link #reshard} moves a history from one layout to another.
+ */
+public final class BillShards {
+
+    // A text snapshot is read in chunks of at least this many bytes
+    private static final long MIN_LOAD_CHUNK = 8L << 20;
+
+    private BillShards() {}
+
+    /**
+     * The shard of a user. String.hashCode is fixed by the language, so this never changes
+     * between runs or Java versions.
+     */
+    static int shardOf(String username, int shards) {
+        return shards == 1 ? 0 : Math.floorMod(username.hashCode(), shards);
+    }
+
+    /**
+     * The snapshot file of a shard: user_bills.dat -> user_bills-2-of-8.dat
+     */
+    static String shardFile(String storageFile, int shard, int shards) {
+        if (shards == 1) return storageFile;
+        String suffix = "-" + shard + "-of-" + shards;
+        return storageFile.endsWith(".dat")
+                ? storageFile.substring(0, storageFile.length() - 4) + suffix + ".dat"
+                : storageFile + suffix;
+    }
+
+    /**
+     * The binary snapshot sits next to the text one: user_bills.dat -> user_bills.bin
+     */
+    static File binaryFile(String file) {
+        String path = file.endsWith(".dat") ? file.substring(0, file.length() - 4) : file;
+        return new File(path + ".bin");
+    }
+
+    /**
+     * Moves a finished file into place, atomically where the file system allows it.
+     */
+    static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static File logFile(String file) {
+        return new File(file + ".log");
+    }
+
+    /**
+     * A shard's archive of one year: user_bills.dat -> user_bills.2015.arc (see BillArchive)
+     */
+    static File archiveFile(String file, int year) {
+        String path = file.endsWith(".dat") ? file.substring(0, file.length() - 4) : file;
+        return new File(path + "." + year + ".arc");
+    }
+
+    /**
+     * A shard's archive files by year, oldest first.
+     */
+    static NavigableMap<Integer, File> archiveFiles(String file) {
+        File base = new File(file).getAbsoluteFile();
+        String name = base.getName();
+        String stem = name.endsWith(".dat") ? name.substring(0, name.length() - 4) : name;
+        Pattern pattern = Pattern.compile(Pattern.quote(stem) + "\\.(\\d+)\\.arc");
+        NavigableMap<Integer, File> found = new TreeMap<>();
+        File[] files = base.getParentFile() == null ? null : base.getParentFile().listFiles();
+        if (files == null) return found;
+        for (File candidate : files) {
+            Matcher m = pattern.matcher(candidate.getName());
+            if (m.matches()) found.put(Integer.parseInt(m.group(1)), candidate);
+        }
+        return found;
+    }
+
+    /**
+     * The snapshot to load: whichever of the text and binary files was written last,
+     * so switching storage.format back and forth never loads a stale copy.
+     */
+    static File newestSnapshot(String file) {
+        File text = new File(file);
+        File binary = binaryFile(file);
+        if (!binary.exists()) return text.exists() ? text : null;
+        if (!text.exists()) return binary;
+        return binary.lastModified() >= text.lastModified() ? binary : text;
+    }
+
+    /**
+     * History files next to storageFile that belong to a different number of shards, e.g. an
+     * unsharded user_bills.dat left behind when storage.shards was raised without resharding.
+     */
+    static List<File> otherLayoutFiles(String storageFile, int shards) {
+        File base = new File(storageFile).getAbsoluteFile();
+        String name = base.getName();
+        boolean dat = name.endsWith(".dat");
+        String stem = dat ? name.substring(0, name.length() - 4) : name;
+        Pattern pattern = Pattern.compile(Pattern.quote(stem) + "(-\\d+-of-(\\d+))?"
+                + (dat ? "(\\.dat|\\.bin|\\.dat\\.log|\\.\\d+\\.arc)" : "(|\\.bin|\\.log|\\.\\d+\\.arc)"));
+        List<File> found = new ArrayList<>();
+        File[] files = base.getParentFile() == null ? null : base.getParentFile().listFiles();
+        if (files == null) return found;
+        for (File file : files) {
+            Matcher m = pattern.matcher(file.getName());
+            if (!m.matches()) continue;
+            int count = m.group(2) == null ? 1 : Integer.parseInt(m.group(2));
+            if (count != shards) found.add(file);
+        }
+        return found;
+    }
+
+    /**
+     * Eager loading: reads each snapshot (null for a shard without one) into the map at the same
+     * position, several shards at a time and a large text snapshot in chunks, with up to
+     * {@code threads} threads in all. A snapshot that cannot be read is reported and left out.
+     *
+     * This runs inside UserBillStorage's static initializer, so the loading threads must not
+     * call into UserBillStorage (not even its lambdas): they would wait for the initializer,
+     * which waits for them.
+     * @return per snapshot, the number of bills skipped for an invalid period
+     */
+    static long[] readSnapshots(File[] snapshots, List<Map<String, UserBills>> targets, MeterDictionary meters, int threads) {
+        long[] skipped = new long[snapshots.length];
+        int chunkThreads = Math.max(1, threads / snapshots.length);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < snapshots.length; i++) {
+            File snapshot = snapshots[i];
+            if (snapshot == null) continue;
+            int shard = i;
+            tasks.add(() -> {
+                try {
+                    skipped[shard] = readSnapshot(snapshot, targets.get(shard), meters, chunkThreads);
+                } catch (IOException e) {
+                    System.err.println("Failed to load user bill storage: " + e.getMessage());
+                }
+                return null;
+            });
+        }
+        runQuietly(tasks, threads);
+        return skipped;
+    }
+
+    /**
+     * Reads one snapshot into {@code target}. A text snapshot of more than one chunk is read in
+     * parallel, see TextBillFile.read(File, BillSink[]).
+     * @return the number of bills skipped for an invalid period
+     */
+    private static long readSnapshot(File snapshot, Map<String, UserBills> target, MeterDictionary meters,
+                                     int threads) throws IOException {
+        int chunks = (int) Math.max(1, Math.min(threads, snapshot.length() / MIN_LOAD_CHUNK));
+        if (snapshot.getName().endsWith(".bin") || chunks == 1) {
+            UserBills.Collector collector = new UserBills.Collector(target, meters);
+            if (snapshot.getName().endsWith(".bin")) {
+                BinaryBillFile.read(snapshot, collector);
+            } else {
+                TextBillFile.read(snapshot, collector);
+            }
+            collector.finish();
+            return collector.getSkipped();
+        }
+
+        // The first chunk fills the target directly, the others a map of their own; the meter
+        // dictionary is shared
+        List<Map<String, UserBills>> parts = new ArrayList<>();
+        UserBills.Collector[] collectors = new UserBills.Collector[chunks];
+        for (int i = 0; i < chunks; i++) {
+            parts.add(i == 0 ? target : new HashMap<>());
+            collectors[i] = new UserBills.Collector(parts.get(i), meters);
+        }
+        TextBillFile.read(snapshot, collectors);
+        long skipped = 0;
+        // Merged in file order, so a user whose bills are on several lines ends up as with one reader
+        for (int i = 0; i < chunks; i++) {
+            collectors[i].finish();
+            skipped += collectors[i].getSkipped();
+            if (i > 0) {
+                for (Map.Entry<String, UserBills> entry : parts.get(i).entrySet()) {
+                    target.merge(entry.getKey(), entry.getValue(), UserBills::withAll);
+                }
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Lazy loading: indexes each snapshot (null for a shard without one) in parallel, like
+     * {@link #readSnapshots}. The meters each user has bills on are passed to {@code meterUse}
+     * afterwards, on the calling thread; every bill's (user, period) key is added to
+     * {@code billKeys} (unless null) while indexing, as the filter is safe to fill from several threads.
+     * @return per snapshot, its index, or null if there is none or it could not be read
+     */
+    static BillFileIndex[] indexSnapshots(File[] snapshots, int threads, BiConsumer<String, String> meterUse,
+                                          BloomFilter billKeys) {
+        BillFileIndex[] indexes = new BillFileIndex[snapshots.length];
+        // Per snapshot: user, meter, user, meter, ...
+        List<List<String>> meterUses = new ArrayList<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < snapshots.length; i++) {
+            List<String> uses = new ArrayList<>();
+            meterUses.add(uses);
+            File snapshot = snapshots[i];
+            if (snapshot == null) continue;
+            int shard = i;
+            tasks.add(() -> {
+                try {
+                    indexes[shard] = BillFileIndex.build(snapshot, (user, meter) -> {
+                        uses.add(user);
+                        uses.add(meter);
+                    }, billKeys == null ? null : (user, period) -> billKeys.add(BloomFilter.hash(user, period)));
+                } catch (IOException e) {
+                    System.err.println("Failed to load user bill storage: " + e.getMessage());
+                }
+                return null;
+            });
+        }
+        runQuietly(tasks, threads);
+        for (List<String> uses : meterUses) {
+            for (int i = 0; i < uses.size(); i += 2) {
+                meterUse.accept(uses.get(i), uses.get(i + 1));
+            }
+        }
+        return indexes;
+    }
+
+    private static void runQuietly(List<Callable<Void>> tasks, int threads) {
+        try {
+            runAll(tasks, threads);
+        } catch (IOException e) {
+            // The tasks report their own failures
+        }
+    }
+
+    /**
+     * Runs the tasks on up to {@code threads} daemon "bill-load" threads and waits for all of
+     * them; a single task runs on the calling thread.
+     * @throws IOException the first failure, once every task has finished
+     */
+    static void runAll(List<Callable<Void>> tasks, int threads) throws IOException {
+        if (tasks.isEmpty()) return;
+        try {
+            if (tasks.size() == 1 || threads <= 1) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), task -> {
+                Thread thread = new Thread(task, "bill-load");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                ExecutionException failure = null;
+                for (Future<Void> result : pool.invokeAll(tasks)) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) failure = e;
+                    }
+                }
+                if (failure != null) throw failure;
+            } finally {
+                pool.shutdown();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading bills");
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads all of one shard's bills into {@code users}: its archives, snapshot and log in that
+     * order, as archived bills are the oldest, and with the same rules for a bill stored again
+     * as when the application loads them. For tools that run while the application does not.
+     * @param file the shard's snapshot name, see {@link #shardFile}
+     * @return the number of bills skipped for an invalid period
+     */
+    static long readShard(String file, Map<String, UserBills> users, MeterDictionary meters) throws IOException {
+        UserBills.Collector collector = new UserBills.Collector(users, meters);
+        for (File archive : archiveFiles(file).values()) {
+            BillArchive.open(archive).readAll(collector);
+        }
+        File snapshot = newestSnapshot(file);
+        if (snapshot != null && snapshot.getName().endsWith(".bin")) {
+            BinaryBillFile.read(snapshot, collector);
+        } else if (snapshot != null) {
+            TextBillFile.read(snapshot, collector);
+        }
+        Charset charset = Charset.defaultCharset();
+        new BillLog(logFile(file)).replay((bytes, from, to) -> TextBillFile.parseLine(bytes, from, to, charset, collector));
+        collector.finish();
+        return collector.getSkipped();
+    }
+
+    /**
+     * Rewrites the history kept under storageFile from {@code fromShards} shards into
+     * {@code toShards}. One old shard is read at a time, its archives, snapshot and log in that
+     * order, and its users are appended to the new shards' text snapshots. Once those are
+     * complete they replace any old files of the same name, and the remaining old snapshots,
+     * logs and archives are deleted. The application must not be running meanwhile.
+     * @return the number of bills written
+     */
+    public static long reshard(String storageFile, int fromShards, int toShards) throws IOException {
+        if (fromShards < 1 || toShards < 1) {
+            throw new IllegalArgumentException("Shard counts must be at least 1: " + fromShards + " -> " + toShards);
+        }
+        Set<File> oldFiles = new HashSet<>();
+        for (int i = 0; i < fromShards; i++) {
+            String file = shardFile(storageFile, i, fromShards);
+            oldFiles.add(new File(file));
+            oldFiles.add(binaryFile(file));
+            oldFiles.add(logFile(file));
+            oldFiles.addAll(archiveFiles(file).values());
+        }
+        File[] targets = new File[toShards];
+        for (int j = 0; j < toShards; j++) {
+            String file = shardFile(storageFile, j, toShards);
+            targets[j] = new File(file);
+            List<File> existingFiles = new ArrayList<>(archiveFiles(file).values());
+            existingFiles.add(targets[j]);
+            existingFiles.add(binaryFile(file));
+            existingFiles.add(logFile(file));
+            for (File existing : existingFiles) {
+                if (existing.exists() && !oldFiles.contains(existing)) {
+                    throw new IOException(existing + " already exists and is not part of the history being resharded");
+                }
+            }
+        }
+
+        MeterDictionary meters = new MeterDictionary();
+        File[] temps = new File[toShards];
+        BufferedWriter[] out = new BufferedWriter[toShards];
+        StringBuilder sb = new StringBuilder();
+        long bills = 0;
+        long skipped = 0;
+        boolean written = false;
+        try {
+            for (int j = 0; j < toShards; j++) {
+                temps[j] = new File(targets[j].getPath() + ".tmp");
+                out[j] = new BufferedWriter(new FileWriter(temps[j]));
+            }
+            for (int i = 0; i < fromShards; i++) {
+                Map<String, UserBills> users = new LinkedHashMap<>();
+                // The new layout's snapshots hold the archived bills until the application archives them again
+                skipped += readShard(shardFile(storageFile, i, fromShards), users, meters);
+                for (Map.Entry<String, UserBills> entry : users.entrySet()) {
+                    TextBillFile.writeUser(out[shardOf(entry.getKey(), toShards)], sb, entry.getKey(), entry.getValue(), meters);
+                    bills += entry.getValue().size();
+                }
+            }
+            for (int j = 0; j < toShards; j++) {
+                out[j].close();
+            }
+            written = true;
+        } finally {
+            for (int j = 0; j < toShards; j++) {
+                if (out[j] != null) {
+                    try {
+                        out[j].close();
+                    } catch (IOException e) {
+                        written = false;
+                    }
+                }
+                if (!written && temps[j] != null) Files.deleteIfExists(temps[j].toPath());
+            }
+        }
+        if (skipped > 0) {
+            System.err.println("Skipped " + skipped + " bills with an invalid period");
+        }
+
+        Set<File> newFiles = new HashSet<>();
+        for (int j = 0; j < toShards; j++) {
+            replaceFile(temps[j], targets[j]);
+            newFiles.add(targets[j]);
+        }
+        for (File old : oldFiles) {
+            if (!newFiles.contains(old)) Files.deleteIfExists(old.toPath());
+        }
+        return bills;
+    }
+}
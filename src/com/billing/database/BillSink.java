@@ -0,0 +1,25 @@
+package com.billing.database;
+
+/**
+ * Receives what a bill history file reader finds, in file order.
+ */
+interface BillSink {
+
+    /**
+     * A user line, also called for users without any bills.
+     */
+    void user(String username);
+
+    /**
+     * One bill of that user.
+     */
+    void record(String username, UserBillStorage.BillRecord record);
+
+    /**
+     * One bill of that user with a valid yyyymm period, as the text reader parses it.
+     * Sinks that pack bills anyway override this to skip creating the BillRecord.
+     */
+    default void record(String username, int period, int units, long amountPaise, String meterNumber) {
+        record(username, new UserBillStorage.BillRecord(BillPeriods.toPeriodKey(period), units, amountPaise, meterNumber));
+    }
+}
@@ -0,0 +1,101 @@
+package com.billing.database;
+
+import java.util.List;
+
+/**
+ * Everything the GUI needs from bill history storage, so the engine behind it can be swapped
+ * (storage.mode in config.properties, see {@link BillStores}) or benchmarked side by side.
+ *
+ * Engines: file (user_bills.dat, see UserBillStorage), jdbc (see JdbcBillStorage), offheap
+ * (see OffHeapBillStore) and memory (see MemoryBillStore). All of them follow the same rules:
+ * - a user has at most one bill per YYYY-MM period; a second bill for a period is ignored,
+ *   unless the stored one was saved without units or amount, in which case it is replaced
+ * - meter numbers compare ignoring case
+ * - record lists are read-only and sorted by period
+ */
+public interface BillStore {
+
+    /**
+     * Returns a canonical key like YYYY-MM (01-12) for given inputs.
+     */
+    static String toPeriodKey(int year, int monthIndexZeroBased) {
+        return BillPeriods.toPeriodKey(year, monthIndexZeroBased);
+    }
+
+    /**
+     * True if the user has a bill for the period.
+     * @throws IllegalStateException if the engine could not check (jdbc)
+     */
+    boolean hasCalculated(String username, int year, int monthIndexZeroBased);
+
+    /**
+     * Records a calculated bill. The amount is in paise; units and amount are -1 if unknown.
+     * @throws IllegalArgumentException if the year and month do not make a YYYY-MM period, or
+     *         (jdbc) the username or meter number is longer than its column
+     * @throws IllegalStateException if the engine could not save the bill (jdbc, offheap)
+     */
+    void addCalculatedPaise(String username, int year, int monthIndexZeroBased, int units, long amountPaise, String meterNumber);
+
+    /**
+     * All bills of the user, oldest first.
+     */
+    List<UserBillStorage.BillRecord> getCalculatedRecords(String username);
+
+    /**
+     * All bills of the user, newest first.
+     */
+    List<UserBillStorage.BillRecord> getCalculatedRecordsNewestFirst(String username);
+
+    /**
+     * The user's bills from one YYYY-MM period to another (inclusive), oldest first.
+     * @throws IllegalArgumentException if either period is not a YYYY-MM key
+     */
+    List<UserBillStorage.BillRecord> getCalculatedRecords(String username, String fromPeriodKey, String toPeriodKey);
+
+    /**
+     * True if a user other than {@code currentUser} has a bill on the meter.
+     * @throws IllegalStateException if the engine could not check (jdbc)
+     */
+    boolean meterNumberExistsForOtherUser(String meterNumber, String currentUser);
+
+    /**
+     * A user with a bill on the meter, or null if there is none.
+     */
+    String getMeterNumberOwner(String meterNumber);
+
+    /**
+     * The bill on the meter for the YYYY-MM period, or null if there is none.
+     */
+    UserBillStorage.BillRecord getRecordByMeterAndMonth(String meterNumber, String periodKey);
+
+    /**
+     * Count, units, amount, lowest and highest amount of all the user's bills. Kept up to date
+     * as bills are added, so this does not read the bills (see each engine for how).
+     */
+    BillSummary getSummary(String username);
+
+    /**
+     * The same totals for the user's bills of one year.
+     */
+    BillSummary getSummary(String username, int year);
+
+    /**
+     * Starts telling the listener about bills added or changed through this store.
+     */
+    void addListener(BillStoreListener listener);
+
+    void removeListener(BillStoreListener listener);
+
+    /**
+     * Waits until every bill added so far has been written out, for engines that save in the
+     * background. Called before shutdown.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Releases files or connections held by the engine.
+     */
+    default void close() {
+    }
+}
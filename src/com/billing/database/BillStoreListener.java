@@ -0,0 +1,38 @@
+package com.billing.database;
+
+/**
+ * Told about every change made to bill history through a {@link BillStore}, so that views
+ * such as the history table can apply the change instead of reloading everything.
+ *
+ * Listeners are called on the thread that saved the bill, in the order a user's bills changed,
+ * before the save returns. They must be quick and must not save bills themselves; GUI code
+ * should hand the event over to the event dispatch thread. Bills loaded at startup or imported
+ * in bulk are not reported.
+ *
+ * With the file engine and storage.shared=true, bills other processes append to the shared log
+ * are reported too, on the bill-sync thread when it picks them up (or on a thread that catches
+ * up before writing). Bills found by a full reload, after falling too far behind, are not. The
+ * jdbc engine only reports bills saved through its own instance, not by other terminals.
+ */
+public interface BillStoreListener {
+
+    /**
+     * The user has a bill for a period they had no bill for before.
+     */
+    default void billAdded(String username, UserBillStorage.BillRecord record) {
+    }
+
+    /**
+     * The user's bill for {@code record.periodKey} was replaced, which happens when the stored
+     * bill had been saved without units or amount.
+     */
+    default void billUpdated(String username, UserBillStorage.BillRecord record) {
+    }
+
+    /**
+     * The user's bill for {@code record.periodKey} no longer exists. None of the engines
+     * deletes bills at the moment, but views should handle it.
+     */
+    default void billRemoved(String username, UserBillStorage.BillRecord record) {
+    }
+}
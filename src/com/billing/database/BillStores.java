@@ -0,0 +1,76 @@
+package com.billing.database;
+
+import com.billing.config.AppConfig;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Picks the bill store engine named by storage.mode in config.properties:
+ *   file    - user_bills.dat next to the application (default, see UserBillStorage)
+ *   jdbc    - the user_bills table of the db.* database (see JdbcBillStorage)
+ *   offheap - user_bills.off, mapped outside the Java heap (see OffHeapBillStore)
+ *   memory  - kept in memory only and lost on exit (see MemoryBillStore)
+ */
+public final class BillStores {
+
+    private static BillStore store;
+
+    private BillStores() {}
+
+    /**
+     * The configured store, created on first use.
+     */
+    public static synchronized BillStore get() {
+        if (store == null) {
+            store = create(AppConfig.getBillStorageMode());
+        }
+        return store;
+    }
+
+    /**
+     * Creates a store of the given mode (file, jdbc, offheap or memory). Stores that hold files or
+     * connections are closed when the application exits.
+     */
+    public static BillStore create(String mode) {
+        BillStore created;
+        if ("jdbc".equals(mode)) {
+            System.out.println("Bill history is stored in the database at " + AppConfig.getDbUrl());
+            created = new JdbcBillStorage(AppConfig.getDbUrl(), AppConfig.getDbUser(), AppConfig.getDbPassword(),
+                    AppConfig.getBillDbBatchSize());
+            // Closing lets embedded databases write out what they still buffer
+            Runtime.getRuntime().addShutdownHook(new Thread(created::close, "bill-database-close"));
+        } else if ("offheap".equals(mode)) {
+            created = openOffHeap(AppConfig.getBillOffHeapFile());
+            // Closing forces the mapped bills to disk
+            Runtime.getRuntime().addShutdownHook(new Thread(created::close, "bill-offheap-close"));
+        } else if ("memory".equals(mode)) {
+            System.out.println("Bill history is kept in memory only and will not be saved");
+            created = new MemoryBillStore();
+        } else {
+            created = FileBillStore.INSTANCE;
+        }
+        return created;
+    }
+
+    /**
+     * The off-heap store mapped from the file, or, if there is no file or it cannot be opened,
+     * one in direct memory that is not saved.
+     */
+    private static OffHeapBillStore openOffHeap(String fileName) {
+        OffHeapBillStore store = null;
+        if (!fileName.isEmpty()) {
+            try {
+                store = new OffHeapBillStore(new File(fileName));
+                System.out.println("Bill history is kept off the Java heap in " + fileName);
+            } catch (IOException e) {
+                System.err.println("Failed to open off-heap bill file " + fileName + ": " + e.getMessage());
+            }
+        }
+        if (store == null) {
+            System.out.println("Bill history is kept off the Java heap and will not be saved");
+            store = new OffHeapBillStore();
+        }
+        System.out.println(store.describeMemory());
+        return store;
+    }
+}
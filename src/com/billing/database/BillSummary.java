@@ -0,0 +1,44 @@
+package com.billing.database;
+
+/**
+ * Totals of a set of a user's bills: all of them, or those of one year (see
+ * {@link BillStore#getSummary(String)}). Bills saved without units or amount count as bills,
+ * but not towards the sums, the lowest or the highest amount.
+ *
+ * Engines keep these up to date as bills are added, so asking for one reads no bills.
+ * Instances are immutable.
+ */
+public final class BillSummary {
+
+    public static final BillSummary EMPTY = new BillSummary(0, 0, 0, 0, -1, -1);
+
+    public final int bills;          // all bills
+    public final int pricedBills;    // bills with units and amount, which the rest add up
+    public final long totalUnits;
+    public final long totalPaise;
+    public final long minPaise;      // -1 if no bill has an amount
+    public final long maxPaise;      // -1 if no bill has an amount
+
+    BillSummary(int bills, int pricedBills, long totalUnits, long totalPaise, long minPaise, long maxPaise) {
+        this.bills = bills;
+        this.pricedBills = pricedBills;
+        this.totalUnits = totalUnits;
+        this.totalPaise = totalPaise;
+        this.minPaise = minPaise;
+        this.maxPaise = maxPaise;
+    }
+
+    /**
+     * These totals with one more stored bill. A bill that replaced one saved without units or
+     * amount ({@code replaced}) is not counted again; the bill it replaced never added to the
+     * sums, so nothing has to be taken off and the lowest and highest amounts stay exact.
+     */
+    BillSummary plus(int units, long amountPaise, boolean replaced) {
+        int count = replaced ? bills : bills + 1;
+        if (units < 0 || amountPaise < 0) {
+            return new BillSummary(count, pricedBills, totalUnits, totalPaise, minPaise, maxPaise);
+        }
+        return new BillSummary(count, pricedBills + 1, totalUnits + units, totalPaise + amountPaise,
+                minPaise < 0 ? amountPaise : Math.min(minPaise, amountPaise), Math.max(maxPaise, amountPaise));
+    }
+}
@@ -0,0 +1,72 @@
+package com.billing.database;
+
+import java.util.Arrays;
+
+/**
+ * One user's running {@link BillSummary} totals, overall and per year, as the engines keep
+ * them next to the bills. Immutable like UserBills: counting a bill returns a new copy, which
+ * costs a few objects per year the user has bills in, so readers never wait for a writer.
+ */
+final class BillTotals {
+
+    static final BillTotals EMPTY = new BillTotals(new int[0], new BillSummary[0], BillSummary.EMPTY);
+
+    private final int[] years;             // ascending
+    private final BillSummary[] byYear;
+    private final BillSummary all;
+
+    private BillTotals(int[] years, BillSummary[] byYear, BillSummary all) {
+        this.years = years;
+        this.byYear = byYear;
+        this.all = all;
+    }
+
+    BillSummary all() {
+        return all;
+    }
+
+    int yearCount() {
+        return years.length;
+    }
+
+    BillSummary year(int year) {
+        int i = Arrays.binarySearch(years, year);
+        return i >= 0 ? byYear[i] : BillSummary.EMPTY;
+    }
+
+    /**
+     * These totals with one more stored bill of the yyyymm period; see {@link BillSummary#plus}.
+     */
+    BillTotals with(int period, int units, long amountPaise, boolean replaced) {
+        int year = period / 100;
+        int i = Arrays.binarySearch(years, year);
+        int[] newYears = years;
+        BillSummary[] newByYear;
+        if (i >= 0) {
+            newByYear = byYear.clone();
+        } else {
+            i = -i - 1;
+            newYears = new int[years.length + 1];
+            System.arraycopy(years, 0, newYears, 0, i);
+            System.arraycopy(years, i, newYears, i + 1, years.length - i);
+            newYears[i] = year;
+            newByYear = new BillSummary[byYear.length + 1];
+            System.arraycopy(byYear, 0, newByYear, 0, i);
+            System.arraycopy(byYear, i, newByYear, i + 1, byYear.length - i);
+            newByYear[i] = BillSummary.EMPTY;
+        }
+        newByYear[i] = newByYear[i].plus(units, amountPaise, replaced);
+        return new BillTotals(newYears, newByYear, all.plus(units, amountPaise, replaced));
+    }
+
+    /**
+     * The totals of the given bills, for engines that build them when a user is first asked for.
+     */
+    static BillTotals of(UserBills bills) {
+        BillTotals totals = EMPTY;
+        for (int i = 0; i < bills.size(); i++) {
+            totals = totals.with(bills.period(i), bills.units(i), bills.amountPaise(i), false);
+        }
+        return totals;
+    }
+}
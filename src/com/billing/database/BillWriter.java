@@ -0,0 +1,157 @@
+package com.billing.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Background thread that takes new bill log lines off the callers' hands and commits them in
+ * groups: the first line of a group waits at most flushMillis for others to join it, then the
+ * whole group is handed to the committer at once (one write and flush, or one fsync, for all
+ * of them). Saving a bill therefore costs the caller no I/O at all.
+ *
+ * Lines are numbered as they are submitted; {@link #awaitCommitted} and {@link #flush} wait
+ * until the committer has returned for everything up to a number.
+ *
+ * If the committer throws, the group is not counted as committed: it goes back to the front
+ * of the queue and is tried again after RETRY_MILLIS, and callers waiting for any of its
+ * lines get the failure instead of being told the lines were written. A retried group may
+ * repeat lines the failed attempt already wrote, which replaying the log tolerates.
+ */
+final class BillWriter implements Runnable {
+
+    // A group never grows beyond this many lines, however short the flush interval
+    private static final int MAX_GROUP = 4096;
+    // Pause before committing a group again after the committer failed
+    private static final long RETRY_MILLIS = 1000;
+
+    private final long flushMillis;
+    private final Consumer<List<String>> committer;
+    private final Thread thread;
+
+    private List<String> pending = new ArrayList<>();
+    // The group being committed
+    private List<String> committing = Collections.emptyList();
+    private long submitted;
+    private long committed;
+    private boolean flushRequested;
+    // Why the last group failed, until a group is committed again
+    private RuntimeException failure;
+
+    BillWriter(String name, long flushMillis, Consumer<List<String>> committer) {
+        this.flushMillis = flushMillis;
+        this.committer = committer;
+        thread = new Thread(this, name);
+        // Pending lines are flushed by a shutdown hook, so the writer does not hold up exit
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a line for the next group.
+     * @return the line's number, for {@link #awaitCommitted}
+     */
+    synchronized long submit(String line) {
+        pending.add(line);
+        if (pending.size() == 1 || pending.size() >= MAX_GROUP) notifyAll();
+        return ++submitted;
+    }
+
+    /**
+     * Waits until every line up to {@code number} has been committed, committing the
+     * current group right away instead of at the end of its flush interval.
+     * @throws IllegalStateException if the committer failed and those lines are still not committed
+     */
+    synchronized void awaitCommitted(long number) {
+        if (Thread.currentThread() == thread) return;
+        boolean interrupted = false;
+        while (committed < number) {
+            if (failure != null) {
+                if (interrupted) Thread.currentThread().interrupt();
+                throw new IllegalStateException("Bills could not be written yet: " + failure.getMessage(), failure);
+            }
+            flushRequested = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Lines submitted but not committed yet, oldest first. The group being committed may
+     * already have been written.
+     */
+    synchronized List<String> uncommitted() {
+        List<String> lines = new ArrayList<>(committing);
+        lines.addAll(pending);
+        return lines;
+    }
+
+    /**
+     * Barrier: returns once everything submitted before the call has been committed.
+     */
+    void flush() {
+        long last;
+        synchronized (this) {
+            last = submitted;
+        }
+        awaitCommitted(last);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<String> group;
+            try {
+                group = nextGroup();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                committer.accept(group);
+            } catch (RuntimeException e) {
+                System.err.println("Bill writer failed to commit " + group.size() + " bills, retrying: " + e);
+                synchronized (this) {
+                    failure = e;
+                    group.addAll(pending);
+                    pending = group;
+                    committing = Collections.emptyList();
+                    notifyAll();
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            synchronized (this) {
+                committed += group.size();
+                committing = Collections.emptyList();
+                failure = null;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized List<String> nextGroup() throws InterruptedException {
+        while (pending.isEmpty()) {
+            wait();
+        }
+        long deadline = System.nanoTime() + flushMillis * 1_000_000;
+        long waitMillis;
+        while (!flushRequested && pending.size() < MAX_GROUP
+                && (waitMillis = (deadline - System.nanoTime()) / 1_000_000) > 0) {
+            wait(waitMillis);
+        }
+        flushRequested = false;
+        committing = pending;
+        pending = new ArrayList<>();
+        return committing;
+    }
+}
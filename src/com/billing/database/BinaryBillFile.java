@@ -0,0 +1,277 @@
+package com.billing.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Compact binary form of the bill history (user_bills.bin), read through a MappedByteBuffer
+ * so that loading does not split or parse any text.
+ *
+ * Layout (big-endian):
+ *   header   magic "UBL1", version, userCount, meterCount (ints), recordCount, stringsOffset (longs)
+ *   records  recordCount fixed-width records of RECORD_BYTES, grouped by user:
+ *            userId, period (yyyymm), units (ints), amountPaise (long), meterId (int, -1 if none)
+ *   strings  userCount user names, then meterCount meter numbers, each as length + UTF-8 bytes
+ */
+public final class BinaryBillFile {
+
+    static final int MAGIC = 0x55424C31; // "UBL1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 24;
+
+    // Records are mapped in windows of at most this many bytes (a whole number of records)
+    private static final long WINDOW_BYTES = (1L << 30) / RECORD_BYTES * RECORD_BYTES;
+
+    private BinaryBillFile() {}
+
+    /**
+     * Converts a legacy text user_bills.dat into the binary format.
+     * @return the number of bills written
+     */
+    public static long convert(File textFile, File binaryFile) throws IOException {
+        Map<String, UserBills> users = new LinkedHashMap<>();
+        MeterDictionary meters = new MeterDictionary();
+        UserBills.Collector collector = new UserBills.Collector(users, meters);
+        TextBillFile.read(textFile, collector);
+        collector.finish();
+        if (collector.getSkipped() > 0) {
+            System.err.println("Skipped " + collector.getSkipped() + " bills with an invalid period in " + textFile);
+        }
+        return write(binaryFile, users, meters);
+    }
+
+    /**
+     * Returns true if the file starts with the binary format's magic number.
+     */
+    static boolean isBinary(File file) {
+        if (!file.isFile() || file.length() < HEADER_BYTES) return false;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, 4).getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static void read(File file, BillSink sink) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Contents contents = readHeaderAndStrings(ch, file);
+            for (String username : contents.users) {
+                sink.user(username);
+            }
+
+            Map<Integer, String> periodKeys = new HashMap<>();
+            long recordsEnd = HEADER_BYTES + contents.recordCount * RECORD_BYTES;
+            for (long pos = HEADER_BYTES; pos < recordsEnd; pos += WINDOW_BYTES) {
+                long size = Math.min(WINDOW_BYTES, recordsEnd - pos);
+                MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                while (window.remaining() >= RECORD_BYTES) {
+                    int userId = window.getInt();
+                    int period = window.getInt();
+                    int units = window.getInt();
+                    long amountPaise = window.getLong();
+                    int meterId = window.getInt();
+                    String periodKey = periodKeys.get(period);
+                    if (periodKey == null) {
+                        periodKey = BillPeriods.toPeriodKey(period / 100, period % 100 - 1);
+                        periodKeys.put(period, periodKey);
+                    }
+                    sink.record(contents.users[userId], new UserBillStorage.BillRecord(periodKey, units, amountPaise,
+                            meterId < 0 ? null : contents.meters[meterId]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the byte range of every user's records and tells {@code meterUse} about the meters
+     * each user has bills on, reading only the user and meter id of each record (and the period,
+     * for {@code billUse} unless it is null).
+     * @return the meter table, which {@link #readRecords} needs to resolve meter ids
+     */
+    static String[] index(File file, BillFileIndex index, BiConsumer<String, String> meterUse,
+                          ObjIntConsumer<String> billUse) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Contents contents = readHeaderAndStrings(ch, file);
+            for (String username : contents.users) {
+                index.addUser(username);
+            }
+
+            int currentUser = -1;
+            int lastMeter = -1;
+            long runStart = HEADER_BYTES;
+            long recordsEnd = HEADER_BYTES + contents.recordCount * RECORD_BYTES;
+            for (long pos = HEADER_BYTES; pos < recordsEnd; pos += WINDOW_BYTES) {
+                long size = Math.min(WINDOW_BYTES, recordsEnd - pos);
+                MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                for (int offset = 0; offset + RECORD_BYTES <= size; offset += RECORD_BYTES) {
+                    int userId = window.getInt(offset);
+                    int meterId = window.getInt(offset + 20);
+                    if (userId != currentUser) {
+                        if (currentUser >= 0) {
+                            index.addRange(contents.users[currentUser], runStart, pos + offset - runStart);
+                        }
+                        currentUser = userId;
+                        lastMeter = -1;
+                        runStart = pos + offset;
+                    }
+                    if (meterId >= 0 && meterId != lastMeter) {
+                        meterUse.accept(contents.users[userId], contents.meters[meterId]);
+                        lastMeter = meterId;
+                    }
+                    if (billUse != null) {
+                        billUse.accept(contents.users[userId], window.getInt(offset + 4));
+                    }
+                }
+            }
+            if (currentUser >= 0) {
+                index.addRange(contents.users[currentUser], runStart, recordsEnd - runStart);
+            }
+            return contents.meters;
+        }
+    }
+
+    /**
+     * Decodes a run of records of one user, as located by {@link #index}.
+     */
+    static void readRecords(ByteBuffer buffer, String username, String[] meters, BillSink sink) {
+        while (buffer.remaining() >= RECORD_BYTES) {
+            buffer.getInt(); // user id
+            int period = buffer.getInt();
+            int units = buffer.getInt();
+            long amountPaise = buffer.getLong();
+            int meterId = buffer.getInt();
+            String periodKey = BillPeriods.toPeriodKey(period / 100, period % 100 - 1);
+            sink.record(username, new UserBillStorage.BillRecord(periodKey, units, amountPaise,
+                    meterId < 0 ? null : meters[meterId]));
+        }
+    }
+
+    /**
+     * Checks the header and reads the user and meter name tables.
+     */
+    private static Contents readHeaderAndStrings(FileChannel ch, File file) throws IOException {
+        MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC) throw new IOException("Not a binary bill file: " + file);
+        int version = header.getInt();
+        if (version != VERSION) throw new IOException("Unsupported bill file version " + version);
+        int userCount = header.getInt();
+        int meterCount = header.getInt();
+        long recordCount = header.getLong();
+        long stringsOffset = header.getLong();
+
+        // Names are read up front, so every record can point at one shared String per user and per meter
+        MappedByteBuffer strings = ch.map(FileChannel.MapMode.READ_ONLY, stringsOffset, ch.size() - stringsOffset);
+        String[] users = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = readString(strings);
+        }
+        String[] meters = new String[meterCount];
+        for (int i = 0; i < meterCount; i++) {
+            meters[i] = readString(strings);
+        }
+        return new Contents(users, meters, recordCount);
+    }
+
+    /**
+     * Writes all users and their bills.
+     * @return the number of bills written
+     */
+    static long write(File file, Map<String, UserBills> users, MeterDictionary meters) throws IOException {
+        // First pass: count the bills and number the meters in use, in order of first use
+        int[] fileMeterIds = new int[meters.size()];
+        Arrays.fill(fileMeterIds, -1);
+        List<String> fileMeters = new ArrayList<>();
+        long recordCount = 0;
+        for (UserBills bills : users.values()) {
+            for (int i = 0; i < bills.size(); i++) {
+                int meterId = bills.meterId(i);
+                if (meterId >= fileMeterIds.length) {
+                    // Users read lazily while writing can add meters to the dictionary
+                    int oldLength = fileMeterIds.length;
+                    fileMeterIds = Arrays.copyOf(fileMeterIds, Math.max(meterId + 1, oldLength * 2));
+                    Arrays.fill(fileMeterIds, oldLength, fileMeterIds.length, -1);
+                }
+                if (meterId >= 0 && fileMeterIds[meterId] < 0) {
+                    fileMeterIds[meterId] = fileMeters.size();
+                    fileMeters.add(meters.name(meterId));
+                }
+            }
+            recordCount += bills.size();
+        }
+
+        List<String> usernames = new ArrayList<>(users.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(users.size());
+            out.writeInt(fileMeters.size());
+            out.writeLong(recordCount);
+            out.writeLong(HEADER_BYTES + recordCount * RECORD_BYTES);
+
+            int userId = 0;
+            for (Map.Entry<String, UserBills> entry : users.entrySet()) {
+                UserBills bills = entry.getValue();
+                for (int i = 0; i < bills.size(); i++) {
+                    int meterId = bills.meterId(i);
+                    out.writeInt(userId);
+                    out.writeInt(bills.period(i));
+                    out.writeInt(bills.units(i));
+                    out.writeLong(bills.amountPaise(i));
+                    out.writeInt(meterId < 0 ? -1 : fileMeterIds[meterId]);
+                }
+                usernames.add(entry.getKey());
+                userId++;
+            }
+
+            for (String username : usernames) {
+                writeString(out, username);
+            }
+            for (String meter : fileMeters) {
+                writeString(out, meter);
+            }
+        }
+        return recordCount;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static final class Contents {
+        final String[] users;
+        final String[] meters;
+        final long recordCount;
+
+        Contents(String[] users, String[] meters, long recordCount) {
+            this.users = users;
+            this.meters = meters;
+            this.recordCount = recordCount;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.billing.database;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter over 64-bit key hashes: a compact set that can say for sure that a key was
+ * never added, and otherwise answers "maybe". The bill store keeps one for meter numbers and
+ * one for (user, period) keys, so that the common case of a new meter or month is answered
+ * without touching the maps or, when loading lazily, the disk.
+ *
+ * The filter is sized for an expected number of keys. If more are added, a layer twice as
+ * large is added instead of rebuilding, and each layer gets half the false-positive rate of
+ * the one before, so the rate over all layers stays under the configured one (a "scalable"
+ * Bloom filter). Bits are set with atomic operations, so adding and checking need no lock.
+ * Keys cannot be removed; a key that is gone from the store only costs a lookup.
+ */
+final class BloomFilter {
+
+    private final double falsePositiveRate;
+    private volatile Layer[] layers;
+
+    // Only the rare outcomes are counted, so a check that finds the key costs no counter update
+    private final LongAdder definiteMisses = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * @param expectedKeys      keys the first layer is sized for
+     * @param falsePositiveRate highest rate of "maybe" answers for keys never added, e.g. 0.01
+     */
+    BloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False-positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        this.layers = new Layer[] { new Layer(Math.max(1024, expectedKeys), falsePositiveRate / 2) };
+    }
+
+    /**
+     * Adds a key, see {@link #hash(String)} and {@link #hash(String, int)}.
+     */
+    void add(long hash) {
+        Layer[] current = layers;
+        Layer last = current[current.length - 1];
+        for (Layer layer : current) {
+            if (layer != last && layer.mightContain(hash)) return;
+        }
+        if (last.add(hash) && last.keys.sum() >= last.capacity) grow(last);
+    }
+
+    private synchronized void grow(Layer full) {
+        Layer[] current = layers;
+        if (current[current.length - 1] != full) return;
+        Layer[] grown = new Layer[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = new Layer(full.capacity * 2, full.falsePositiveRate / 2);
+        layers = grown;
+    }
+
+    /**
+     * False if the key was certainly never added, true if it may have been.
+     */
+    boolean mightContain(long hash) {
+        for (Layer layer : layers) {
+            if (layer.mightContain(hash)) return true;
+        }
+        definiteMisses.increment();
+        return false;
+    }
+
+    /**
+     * Tells the filter that a key it said "maybe" for turned out not to be in the store,
+     * so the observed false-positive rate can be reported.
+     */
+    void falsePositive() {
+        falsePositives.increment();
+    }
+
+    /**
+     * Number of keys added, leaving out keys that were already (or seemed to be) present.
+     */
+    long keyCount() {
+        long count = 0;
+        for (Layer layer : layers) {
+            count += layer.keys.sum();
+        }
+        return count;
+    }
+
+    long sizeBytes() {
+        long bytes = 0;
+        for (Layer layer : layers) {
+            bytes += layer.words.length() * 8L;
+        }
+        return bytes;
+    }
+
+    /**
+     * False-positive rate expected from the bits set so far, over all layers.
+     */
+    double expectedFalsePositiveRate() {
+        double allMiss = 1;
+        for (Layer layer : layers) {
+            allMiss *= 1 - layer.expectedFalsePositiveRate();
+        }
+        return 1 - allMiss;
+    }
+
+    /**
+     * Share of "maybe" answers for keys the store did not have, among all checks of such keys
+     * (definite misses plus reported false positives); 0 before any.
+     */
+    double observedFalsePositiveRate() {
+        long misses = definiteMisses.sum();
+        long wrong = falsePositives.sum();
+        return misses + wrong == 0 ? 0 : (double) wrong / (misses + wrong);
+    }
+
+    /**
+     * Checks answered "certainly not added".
+     */
+    long definiteMisses() {
+        return definiteMisses.sum();
+    }
+
+    /**
+     * One line for logs, e.g. "120,000 keys in 140 KB (1 layer), fpp 1.00% configured / 0.40% expected
+     * / 0.38% seen, 9,800 lookups saved".
+     */
+    String describe() {
+        Layer[] current = layers;
+        return String.format("%,d keys in %,d KB (%d layer%s), fpp %.2f%% configured / %.2f%% expected / %.2f%% seen, "
+                        + "%,d lookups saved",
+                keyCount(), sizeBytes() / 1024, current.length, current.length == 1 ? "" : "s",
+                falsePositiveRate * 100, expectedFalsePositiveRate() * 100, observedFalsePositiveRate() * 100,
+                definiteMisses());
+    }
+
+    /**
+     * 64-bit hash of a string key. It is spread from String.hashCode, which the store's maps
+     * compute (and the String caches) anyway; two keys with the same hashCode look alike to
+     * the filter, which for a few million keys adds well under 0.1% to the false-positive rate.
+     */
+    static long hash(String key) {
+        return mix(key.hashCode() * 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * 64-bit hash of a (string, int) key such as a user and a yyyymm period.
+     */
+    static long hash(String key, int value) {
+        return mix((key.hashCode() * 0x9e3779b97f4a7c15L) ^ value);
+    }
+
+    // The MurmurHash3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One Bloom filter, split into blocks of 512 bits (a 64-byte cache line) with all of a key's
+     * bits in one block, so adding or checking a key touches one cache line instead of one per
+     * hash function. Blocks fill unevenly, so for the same rate they need more bits than the
+     * usual formula gives; the layer grows its block count until the rate at capacity is met.
+     * As in Parquet's split block filters,
+     * probe i sets one bit of word i % 8, picked by multiplying the hash by a salt of its own.
+     */
+    private static final class Layer {
+        private static final int BLOCK_WORDS = 8;
+        private static final int[] SALTS = new int[32];
+
+        static {
+            for (int i = 0; i < SALTS.length; i++) {
+                SALTS[i] = (int) mix(i + 1) | 1;
+            }
+        }
+
+        final long capacity;
+        final double falsePositiveRate;
+        final AtomicLongArray words;
+        final int blocks;
+        final int hashes;
+        final LongAdder keys = new LongAdder();
+
+        Layer(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            // Starts from the unblocked optimum: m = -n ln p / (ln 2)^2 bits and k = m/n ln 2 hash functions
+            double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            int k;
+            while (true) {
+                k = (int) Math.max(1, Math.min(SALTS.length, Math.round(bitsPerKey * Math.log(2))));
+                if (blockedRate(512 / bitsPerKey, k) <= falsePositiveRate || bitsPerKey > 64) break;
+                bitsPerKey *= 1.05;
+            }
+            long maxBlocks = (Integer.MAX_VALUE - 8) / BLOCK_WORDS;
+            this.blocks = (int) Math.min(maxBlocks, (long) Math.ceil(capacity * bitsPerKey / 512));
+            this.hashes = k;
+            this.words = new AtomicLongArray(blocks * BLOCK_WORDS);
+        }
+
+        /**
+         * Sets the key's bits.
+         * @return false if they were all set already, so the key is not counted again
+         */
+        boolean add(long hash) {
+            int block = block(hash);
+            int h = (int) hash;
+            boolean changed = false;
+            for (int i = 0; i < hashes; i++) {
+                int word = block + (i & (BLOCK_WORDS - 1));
+                long mask = 1L << ((h * SALTS[i]) >>> 26);
+                long old;
+                do {
+                    old = words.get(word);
+                    if ((old & mask) != 0) break;
+                    changed = true;
+                } while (!words.compareAndSet(word, old, old | mask));
+            }
+            if (changed) keys.increment();
+            return changed;
+        }
+
+        boolean mightContain(long hash) {
+            int block = block(hash);
+            int h = (int) hash;
+            for (int i = 0; i < hashes; i++) {
+                long mask = 1L << ((h * SALTS[i]) >>> 26);
+                if ((words.get(block + (i & (BLOCK_WORDS - 1))) & mask) == 0) return false;
+            }
+            return true;
+        }
+
+        // First word of the key's block, from the upper half of the hash (multiply-shift, no division)
+        private int block(long hash) {
+            return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+        }
+
+        double expectedFalsePositiveRate() {
+            return blockedRate((double) keys.sum() / blocks, hashes);
+        }
+
+        /**
+         * False-positive rate with {@code perBlock} keys per block on average. Keys spread over
+         * the blocks like a Poisson distribution, and a block holding j keys answers "maybe" for
+         * a new key with the rate (1 - e^(-kj/512))^k of a 512-bit filter.
+         */
+        private static double blockedRate(double perBlock, int hashes) {
+            double rate = 0;
+            double weight = Math.exp(-perBlock);
+            int last = (int) (perBlock + 10 * Math.sqrt(perBlock) + 10);
+            for (int j = 0; j <= last; j++) {
+                if (j > 0) weight *= perBlock / j;
+                rate += weight * Math.pow(1 - Math.exp(-(double) hashes * j / 512), hashes);
+            }
+            return rate;
+        }
+    }
+}
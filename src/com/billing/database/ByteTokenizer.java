@@ -0,0 +1,211 @@
+package com.billing.database;
+
+import com.billing.logic.Money;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Single-pass tokenizing of the text stores (user_bills.dat, its log and users.dat) straight
+ * from their bytes. Lines are handed out as ranges of a shared buffer and fields are found and
+ * parsed in place, so loading creates no line Strings, split arrays or trimmed copies; only
+ * the names that are kept (users, meters) become Strings.
+ *
+ * Separators (newline, ':', ',', '|') are ASCII, so scanning bytes is safe for the files'
+ * encoding (the platform default, as they are written with FileWriter) as long as it is
+ * ASCII-compatible, which UTF-8 and the single-byte encodings are.
+ */
+final class ByteTokenizer {
+
+    private ByteTokenizer() {}
+
+    /**
+     * Receives one line, without its line terminator, as bytes[start, end).
+     * The bytes are only valid during the call.
+     */
+    interface LineHandler {
+        void line(byte[] bytes, int start, int end);
+    }
+
+    /**
+     * Passes every line of the stream to the handler, including a last line without a newline.
+     * Lines end at '\n'; a '\r' before it is dropped.
+     */
+    static void forEachLine(InputStream in, LineHandler handler) throws IOException {
+        forEachLine(in::read, handler);
+    }
+
+    /**
+     * Like {@link #forEachLine(InputStream, LineHandler)}, for the bytes [from, to) of a file.
+     * Reads at explicit positions, so several threads can each take a range of the same channel.
+     */
+    static void forEachLine(FileChannel channel, long from, long to, LineHandler handler) throws IOException {
+        long[] position = {from};
+        forEachLine((bytes, offset, length) -> {
+            int max = (int) Math.min(length, to - position[0]);
+            if (max <= 0) return -1;
+            int n = channel.read(ByteBuffer.wrap(bytes, offset, max), position[0]);
+            if (n > 0) position[0] += n;
+            return n;
+        }, handler);
+    }
+
+    private interface Source {
+        int read(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private static void forEachLine(Source in, LineHandler handler) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int limit = 0;
+        int n;
+        while ((n = in.read(buffer, limit, buffer.length - limit)) > 0) {
+            int end = limit + n;
+            int start = 0;
+            int i = limit;
+            while (true) {
+                while (i < end && buffer[i] != '\n') i++;
+                if (i == end) break;
+                handler.line(buffer, start, i > start && buffer[i - 1] == '\r' ? i - 1 : i);
+                start = ++i;
+            }
+            // Keep the unfinished line at the front; a line longer than the buffer grows it
+            limit = end - start;
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, limit);
+            } else if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        if (limit > 0) {
+            handler.line(buffer, 0, buffer[limit - 1] == '\r' ? limit - 1 : limit);
+        }
+    }
+
+    /**
+     * Index of the first {@code c} in [from, to), or -1.
+     */
+    static int indexOf(byte[] bytes, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * First index in [from, to) that is not whitespace as String.trim sees it, or {@code to}.
+     */
+    static int skipSpace(byte[] bytes, int from, int to) {
+        while (from < to && (bytes[from] & 0xFF) <= ' ') from++;
+        return from;
+    }
+
+    /**
+     * End of [from, to) with trailing whitespace dropped.
+     */
+    static int trimEnd(byte[] bytes, int from, int to) {
+        while (to > from && (bytes[to - 1] & 0xFF) <= ' ') to--;
+        return to;
+    }
+
+    static boolean isBlank(byte[] bytes, int from, int to) {
+        return skipSpace(bytes, from, to) == to;
+    }
+
+    static String string(byte[] bytes, int from, int to, Charset charset) {
+        return new String(bytes, from, to - from, charset);
+    }
+
+    static boolean sameBytes(byte[] bytes, int from, int to, byte[] other, int otherFrom, int otherTo) {
+        if (to - from != otherTo - otherFrom) return false;
+        for (int i = from, j = otherFrom; i < to; i++, j++) {
+            if (bytes[i] != other[j]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Packs a YYYY-MM period into yyyymm like BillPeriods.toPackedPeriod, or -1 if it is not one.
+     */
+    static int parsePeriod(byte[] bytes, int from, int to) {
+        if (to - from != 7 || bytes[from + 4] != '-') return -1;
+        int packed = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from + 4) continue;
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            packed = packed * 10 + d;
+        }
+        return packed;
+    }
+
+    /**
+     * Parses an int the way Integer.parseInt does, or returns -1 if it is not one.
+     */
+    static int parseInt(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = i < to && bytes[i] == '-';
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) i++;
+        // Up to 9 digits cannot overflow; longer ones go the slow way
+        if (i == to || to - i > 9) return parseIntSlow(bytes, from, to);
+        int value = 0;
+        for (; i < to; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    private static int parseIntSlow(byte[] bytes, int from, int to) {
+        try {
+            return Integer.parseInt(new String(bytes, from, to - from, Charset.defaultCharset()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a rupee amount into paise like Money.parsePaise, or returns -1 if it is not a
+     * non-negative amount. Plain amounts such as 1700.00 are parsed here; anything else (signs,
+     * spaces, exponents, very large values) is left to Money.parsePaise.
+     */
+    static long parsePaise(byte[] bytes, int from, int to) {
+        int i = from;
+        long rupees = 0;
+        int digits = 0;
+        while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+            if (digits == 15) return parsePaiseSlow(bytes, from, to);
+            rupees = rupees * 10 + (bytes[i] - '0');
+            i++;
+            digits++;
+        }
+        long fraction = 0;
+        if (i < to && bytes[i] == '.') {
+            i++;
+            int place = 0;
+            while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+                int d = bytes[i] - '0';
+                if (place == 0) fraction += d * 10;
+                else if (place == 1) fraction += d;
+                else if (place == 2 && d >= 5) fraction += 1;
+                place++;
+                i++;
+                digits++;
+            }
+        }
+        if (i != to || digits == 0) return parsePaiseSlow(bytes, from, to);
+        return rupees * 100 + fraction;
+    }
+
+    private static long parsePaiseSlow(byte[] bytes, int from, int to) {
+        try {
+            long paise = Money.parsePaise(new String(bytes, from, to - from, Charset.defaultCharset()));
+            return paise < 0 ? -1 : paise;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.billing.database;
+
+import java.util.List;
+
+/**
+ * BillStore over the user_bills.dat engine (storage.mode=file). UserBillStorage keeps its
+ * state in statics, so there is only one of these.
+ */
+final class FileBillStore implements BillStore {
+
+    static final FileBillStore INSTANCE = new FileBillStore();
+
+    private FileBillStore() {}
+
+    @Override
+    public boolean hasCalculated(String username, int year, int monthIndexZeroBased) {
+        return UserBillStorage.hasCalculated(username, year, monthIndexZeroBased);
+    }
+
+    @Override
+    public void addCalculatedPaise(String username, int year, int monthIndexZeroBased, int units, long amountPaise, String meterNumber) {
+        UserBillStorage.addCalculatedPaise(username, year, monthIndexZeroBased, units, amountPaise, meterNumber);
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecords(String username) {
+        return UserBillStorage.getCalculatedRecords(username);
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecordsNewestFirst(String username) {
+        return UserBillStorage.getCalculatedRecordsNewestFirst(username);
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecords(String username, String fromPeriodKey, String toPeriodKey) {
+        return UserBillStorage.getCalculatedRecords(username, fromPeriodKey, toPeriodKey);
+    }
+
+    @Override
+    public boolean meterNumberExistsForOtherUser(String meterNumber, String currentUser) {
+        return UserBillStorage.meterNumberExistsForOtherUser(meterNumber, currentUser);
+    }
+
+    @Override
+    public String getMeterNumberOwner(String meterNumber) {
+        return UserBillStorage.getMeterNumberOwner(meterNumber);
+    }
+
+    @Override
+    public UserBillStorage.BillRecord getRecordByMeterAndMonth(String meterNumber, String periodKey) {
+        return UserBillStorage.getRecordByMeterAndMonth(meterNumber, periodKey);
+    }
+
+    @Override
+    public BillSummary getSummary(String username) {
+        return UserBillStorage.getSummary(username);
+    }
+
+    @Override
+    public BillSummary getSummary(String username, int year) {
+        return UserBillStorage.getSummary(username, year);
+    }
+
+    @Override
+    public void addListener(BillStoreListener listener) {
+        UserBillStorage.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(BillStoreListener listener) {
+        UserBillStorage.removeListener(listener);
+    }
+
+    @Override
+    public void flush() {
+        UserBillStorage.flush();
+    }
+}
@@ -2,6 +2,7 @@ package com.billing.database;
 
 import com.billing.security.SecurityUtil;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -69,16 +70,15 @@ public class FileUserStorage {
             return;
         }
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = line.split(":", 2);
-                if (parts.length != 2) continue;
-                String username = parts[0];
-                String value = parts[1];
-                users.put(username, value);
-            }
+        // Each line is username:value; see ByteTokenizer for why the bytes are scanned directly
+        Charset charset = Charset.defaultCharset();
+        try (InputStream in = new FileInputStream(file)) {
+            ByteTokenizer.forEachLine(in, (bytes, start, end) -> {
+                if (ByteTokenizer.isBlank(bytes, start, end)) return;
+                int colon = ByteTokenizer.indexOf(bytes, start, end, ':');
+                if (colon < 0) return;
+                users.put(ByteTokenizer.string(bytes, start, colon, charset), ByteTokenizer.string(bytes, colon + 1, end, charset));
+            });
             System.out.println("Loaded " + users.size() + " users from file");
         } catch (IOException e) {
             System.err.println("Error loading users: " + e.getMessage());
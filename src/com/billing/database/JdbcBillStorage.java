@@ -0,0 +1,455 @@
+package com.billing.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Bill history in a database table instead of user_bills.dat (storage.mode=jdbc), so several
+ * billing terminals can share one store. Uses the db.* settings from config.properties and
+ * plain JDBC with portable SQL, so it runs on MySQL as well as on an in-process database
+ * such as H2 or HSQLDB (e.g. db.url=jdbc:h2:mem:bills) for testing without a server.
+ *
+ * Table user_bills, created on first use if it does not exist:
+ *   primary key (username, bill_period)  - a user's bills, one period, or a period range
+ *   index (meter_key, bill_period)       - meter owner checks and meter/month lookups
+ * bill_period is yyyymm; meter_key is the lower-case meter number, as meters compare ignoring case.
+ *
+ * Summaries (getSummary) are not kept in memory, as other terminals add bills too: the database
+ * adds up the user's range of the primary key in one aggregate query instead of sending the rows.
+ *
+ * All methods are synchronized and share one connection, which is reopened after a failure.
+ * A failed read is logged and answered as if nothing was found, like the file engine does
+ * for I/O errors. A failed write, or a failed check that guards one (hasCalculated,
+ * meterNumberExistsForOtherUser), is logged and thrown as an IllegalStateException, so the
+ * caller never takes a bill for saved when it is not, nor saves one the checks would refuse.
+ */
+public class JdbcBillStorage implements BillStore {
+
+    private static final String INSERT =
+            "INSERT INTO user_bills (username, bill_period, units, amount_paise, meter_number, meter_key) VALUES (?, ?, ?, ?, ?, ?)";
+    // A bill can be recorded again only while the stored one lacks units or amount
+    private static final String UPDATE_INCOMPLETE =
+            "UPDATE user_bills SET units = ?, amount_paise = ?, meter_number = ?, meter_key = ?"
+            + " WHERE username = ? AND bill_period = ? AND (units < 0 OR amount_paise < 0)";
+    private static final String SELECT_COLUMNS = "SELECT bill_period, units, amount_paise, meter_number FROM user_bills";
+    // Bills without units or amount only count as bills; CASE without ELSE gives NULL, which the aggregates skip
+    private static final String PRICED = "CASE WHEN units >= 0 AND amount_paise >= 0 THEN ";
+    private static final String SELECT_SUMMARY = "SELECT COUNT(*), COUNT(" + PRICED + "1 END), SUM(" + PRICED + "units END),"
+            + " SUM(" + PRICED + "amount_paise END), MIN(" + PRICED + "amount_paise END), MAX(" + PRICED + "amount_paise END)"
+            + " FROM user_bills WHERE username = ? AND bill_period BETWEEN ? AND ?";
+    // Column sizes; longer values are refused up front rather than by the database
+    private static final int MAX_USERNAME = 50;
+    private static final int MAX_METER = 64;
+    // What upsert did with a bill
+    private static final int INSERTED = 0;
+    private static final int UPDATED = 1;
+    private static final int NOT_STORED = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int batchSize;
+    private Connection connection;
+    private final BillEvents events = new BillEvents();
+
+    public JdbcBillStorage(String url, String user, String password, int batchSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    private Connection connection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            connection = DriverManager.getConnection(url, user, password);
+            createSchemaIfMissing(connection);
+        }
+        return connection;
+    }
+
+    private static void createSchemaIfMissing(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.executeQuery("SELECT 1 FROM user_bills WHERE 1 = 0").close();
+            return;
+        } catch (SQLException missing) {
+            // Not created yet
+        }
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE user_bills ("
+                    + "username VARCHAR(" + MAX_USERNAME + ") NOT NULL, "
+                    + "bill_period INT NOT NULL, "
+                    + "units INT NOT NULL, "
+                    + "amount_paise BIGINT NOT NULL, "
+                    + "meter_number VARCHAR(" + MAX_METER + "), "
+                    + "meter_key VARCHAR(" + MAX_METER + "), "
+                    + "PRIMARY KEY (username, bill_period))");
+            st.executeUpdate("CREATE INDEX idx_user_bills_meter ON user_bills (meter_key, bill_period)");
+        }
+        System.out.println("Created table user_bills");
+    }
+
+    /**
+     * Drops the connection after a failure, so the next call starts with a fresh one.
+     */
+    private void fail(String what, SQLException e) {
+        System.err.println(what + " failed: " + e.getMessage() + " (SQL State: " + e.getSQLState() + ")");
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+            connection = null;
+        }
+    }
+
+    private static String meterKey(String meterNumber) {
+        return meterNumber == null || meterNumber.isEmpty() ? null : meterNumber.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the username or meter number does not fit its column
+     */
+    private static void checkLengths(String username, String meterNumber) {
+        if (username.length() > MAX_USERNAME) {
+            throw new IllegalArgumentException("Username is longer than " + MAX_USERNAME + " characters: " + username);
+        }
+        if (meterNumber != null && meterNumber.length() > MAX_METER) {
+            throw new IllegalArgumentException("Meter number is longer than " + MAX_METER + " characters: " + meterNumber);
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("23");
+    }
+
+    @Override
+    public synchronized void addCalculatedPaise(String username, int year, int monthIndexZeroBased, int units, long amountPaise,
+                                                String meterNumber) {
+        int period = BillPeriods.toPackedPeriod(year, monthIndexZeroBased);
+        if (period < 0) {
+            throw new IllegalArgumentException("Invalid billing period: " + BillStore.toPeriodKey(year, monthIndexZeroBased));
+        }
+        int billUnits = units < 0 ? -1 : units;
+        long billAmount = amountPaise < 0 ? -1 : amountPaise;
+        checkLengths(username, meterNumber);
+        int stored;
+        try {
+            stored = upsert(connection(), username, period, billUnits, billAmount, meterNumber);
+        } catch (SQLException e) {
+            fail("Saving bill of " + username, e);
+            throw new IllegalStateException("Bill of " + username + " was not saved: " + e.getMessage(), e);
+        }
+        if (stored != NOT_STORED && !events.isEmpty()) {
+            UserBillStorage.BillRecord record = new UserBillStorage.BillRecord(
+                    BillStore.toPeriodKey(year, monthIndexZeroBased), billUnits, billAmount, meterNumber);
+            if (stored == UPDATED) {
+                events.updated(username, record);
+            } else {
+                events.added(username, record);
+            }
+        }
+    }
+
+    @Override
+    public void addListener(BillStoreListener listener) {
+        events.add(listener);
+    }
+
+    @Override
+    public void removeListener(BillStoreListener listener) {
+        events.remove(listener);
+    }
+
+    /**
+     * Inserts the bill, or replaces a stored bill for the period that lacks units or amount.
+     * @return INSERTED, UPDATED or NOT_STORED
+     */
+    private static int upsert(Connection conn, String username, int period, int units, long amountPaise,
+                              String meterNumber) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(INSERT)) {
+            bindInsert(ps, username, period, units, amountPaise, meterNumber);
+            ps.executeUpdate();
+            return INSERTED;
+        } catch (SQLException e) {
+            if (!isDuplicateKey(e)) throw e;
+        }
+        try (PreparedStatement ps = conn.prepareStatement(UPDATE_INCOMPLETE)) {
+            ps.setInt(1, units);
+            ps.setLong(2, amountPaise);
+            ps.setString(3, meterNumber);
+            ps.setString(4, meterKey(meterNumber));
+            ps.setString(5, username);
+            ps.setInt(6, period);
+            return ps.executeUpdate() > 0 ? UPDATED : NOT_STORED;
+        }
+    }
+
+    private static void bindInsert(PreparedStatement ps, String username, int period, int units, long amountPaise,
+                                   String meterNumber) throws SQLException {
+        ps.setString(1, username);
+        ps.setInt(2, period);
+        ps.setInt(3, units);
+        ps.setLong(4, amountPaise);
+        ps.setString(5, meterNumber);
+        ps.setString(6, meterKey(meterNumber));
+    }
+
+    /**
+     * Copies a user_bills.dat or user_bills.bin history into the table. Bills are inserted
+     * in batches of the configured size, one transaction per batch.
+     * @return the number of bills read from the file
+     * @throws IllegalArgumentException if a bill's username or meter number is too long for the table
+     * @throws IllegalStateException if a batch cannot be saved; the batches before it stay saved
+     */
+    public synchronized long importFile(File file) throws IOException {
+        List<PendingBill> pending = new ArrayList<>(batchSize);
+        long[] count = new long[1];
+        BillSink sink = new BillSink() {
+            @Override
+            public void user(String username) {
+            }
+
+            @Override
+            public void record(String username, UserBillStorage.BillRecord record) {
+                int period = BillPeriods.toPackedPeriod(record.periodKey);
+                if (period < 0) return;
+                checkLengths(username, record.meterNumber);
+                pending.add(new PendingBill(username, period, record.units, record.amountPaise, record.meterNumber));
+                count[0]++;
+                if (pending.size() == batchSize) {
+                    insertBatch(pending);
+                    pending.clear();
+                }
+            }
+        };
+        if (BinaryBillFile.isBinary(file)) {
+            BinaryBillFile.read(file, sink);
+        } else {
+            TextBillFile.read(file, sink);
+        }
+        insertBatch(pending);
+        return count[0];
+    }
+
+    /**
+     * Inserts the bills as one JDBC batch in one transaction. If any of them clashes with a
+     * stored bill, the batch is rolled back and its bills are applied one at a time with the
+     * usual rule for existing bills.
+     */
+    private void insertBatch(List<PendingBill> rows) {
+        if (rows.isEmpty()) return;
+        Connection conn;
+        try {
+            conn = connection();
+        } catch (SQLException e) {
+            fail("Saving " + rows.size() + " bills", e);
+            throw new IllegalStateException(rows.size() + " bills were not saved: " + e.getMessage(), e);
+        }
+        try {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(INSERT)) {
+                for (PendingBill row : rows) {
+                    bindInsert(ps, row.username, row.period, row.units, row.amountPaise, row.meterNumber);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+            } catch (BatchUpdateException e) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+                for (PendingBill row : rows) {
+                    upsert(conn, row.username, row.period, row.units, row.amountPaise, row.meterNumber);
+                }
+            } finally {
+                if (!conn.isClosed()) conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            fail("Saving " + rows.size() + " bills", e);
+            throw new IllegalStateException(rows.size() + " bills were not saved: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasCalculated(String username, int year, int monthIndexZeroBased) {
+        int period = BillPeriods.toPackedPeriod(year, monthIndexZeroBased);
+        if (period < 0) return false;
+        try (PreparedStatement ps = connection().prepareStatement(
+                "SELECT 1 FROM user_bills WHERE username = ? AND bill_period = ?")) {
+            ps.setString(1, username);
+            ps.setInt(2, period);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            fail("Reading bills of " + username, e);
+            // Answering false would let a second bill for the month through
+            throw new IllegalStateException("Bills of " + username + " could not be checked: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecords(String username) {
+        return Collections.unmodifiableList(getBills(username, 0, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecordsNewestFirst(String username) {
+        List<UserBillStorage.BillRecord> records = getBills(username, 0, Integer.MAX_VALUE);
+        Collections.reverse(records);
+        return Collections.unmodifiableList(records);
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecords(String username, String fromPeriodKey, String toPeriodKey) {
+        int from = BillPeriods.toPackedPeriod(fromPeriodKey);
+        int to = BillPeriods.toPackedPeriod(toPeriodKey);
+        if (from < 0 || to < 0) {
+            throw new IllegalArgumentException("Invalid period range: " + fromPeriodKey + " to " + toPeriodKey);
+        }
+        return Collections.unmodifiableList(getBills(username, from, to));
+    }
+
+    /**
+     * The user's bills from one yyyymm period to another (inclusive), oldest first.
+     */
+    private synchronized List<UserBillStorage.BillRecord> getBills(String username, int fromPeriod, int toPeriod) {
+        try (PreparedStatement ps = connection().prepareStatement(SELECT_COLUMNS
+                + " WHERE username = ? AND bill_period BETWEEN ? AND ? ORDER BY bill_period")) {
+            ps.setString(1, username);
+            ps.setInt(2, fromPeriod);
+            ps.setInt(3, toPeriod);
+            return readRecords(ps);
+        } catch (SQLException e) {
+            fail("Reading bills of " + username, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private static List<UserBillStorage.BillRecord> readRecords(PreparedStatement ps) throws SQLException {
+        List<UserBillStorage.BillRecord> records = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                records.add(new UserBillStorage.BillRecord(BillPeriods.toPeriodKey(rs.getInt(1)), rs.getInt(2),
+                        rs.getLong(3), rs.getString(4)));
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public BillSummary getSummary(String username) {
+        return summarize(username, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public BillSummary getSummary(String username, int year) {
+        return summarize(username, year * 100, year * 100 + 99);
+    }
+
+    private synchronized BillSummary summarize(String username, int fromPeriod, int toPeriod) {
+        try (PreparedStatement ps = connection().prepareStatement(SELECT_SUMMARY)) {
+            ps.setString(1, username);
+            ps.setInt(2, fromPeriod);
+            ps.setInt(3, toPeriod);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) == 0) return BillSummary.EMPTY;
+                int priced = rs.getInt(2);
+                if (priced == 0) return new BillSummary(rs.getInt(1), 0, 0, 0, -1, -1);
+                return new BillSummary(rs.getInt(1), priced, rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(6));
+            }
+        } catch (SQLException e) {
+            fail("Reading bills of " + username, e);
+            return BillSummary.EMPTY;
+        }
+    }
+
+    @Override
+    public synchronized boolean meterNumberExistsForOtherUser(String meterNumber, String username) {
+        if (meterNumber == null) return false;
+        try (PreparedStatement ps = connection().prepareStatement(
+                "SELECT 1 FROM user_bills WHERE meter_key = ? AND username <> ?")) {
+            ps.setMaxRows(1);
+            ps.setString(1, meterKey(meterNumber));
+            ps.setString(2, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            fail("Checking meter " + meterNumber, e);
+            // Answering false would hand the meter to a second user
+            throw new IllegalStateException("Meter " + meterNumber + " could not be checked: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized String getMeterNumberOwner(String meterNumber) {
+        if (meterNumber == null) return null;
+        try (PreparedStatement ps = connection().prepareStatement(
+                "SELECT username FROM user_bills WHERE meter_key = ?")) {
+            ps.setMaxRows(1);
+            ps.setString(1, meterKey(meterNumber));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            fail("Checking meter " + meterNumber, e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized UserBillStorage.BillRecord getRecordByMeterAndMonth(String meterNumber, String periodKey) {
+        int period = BillPeriods.toPackedPeriod(periodKey);
+        if (meterNumber == null || period < 0) return null;
+        try (PreparedStatement ps = connection().prepareStatement(SELECT_COLUMNS
+                + " WHERE meter_key = ? AND bill_period = ?")) {
+            ps.setMaxRows(1);
+            ps.setString(1, meterKey(meterNumber));
+            ps.setInt(2, period);
+            List<UserBillStorage.BillRecord> records = readRecords(ps);
+            return records.isEmpty() ? null : records.get(0);
+        } catch (SQLException e) {
+            fail("Checking meter " + meterNumber, e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("Failed to close bill database connection: " + e.getMessage());
+        }
+        connection = null;
+    }
+
+    private static final class PendingBill {
+        final String username;
+        final int period;
+        final int units;
+        final long amountPaise;
+        final String meterNumber;
+
+        PendingBill(String username, int period, int units, long amountPaise, String meterNumber) {
+            this.username = username;
+            this.period = period;
+            this.units = units;
+            this.amountPaise = amountPaise;
+            this.meterNumber = meterNumber;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.billing.database;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Bill store that keeps everything in memory and never touches a file (storage.mode=memory).
+ * Bills are lost when the application exits, so it is meant for demos, tests and as the
+ * baseline the other engines are benchmarked against.
+ *
+ * Bills are packed per user exactly as in the file engine (see UserBills), and the user's
+ * entry is replaced atomically on every add, so reads take no lock. The user's running
+ * totals (see BillTotals) are updated in the same step.
+ */
+public class MemoryBillStore implements BillStore {
+
+    private final Map<String, UserBills> userToBills = new ConcurrentHashMap<>();
+    // Only written while the user's entry in userToBills is locked
+    private final Map<String, BillTotals> userTotals = new ConcurrentHashMap<>();
+    private final MeterDictionary meters = new MeterDictionary();
+    // normalized meter number -> users with a bill on that meter (normally exactly one)
+    private final Map<String, Set<String>> meterOwners = new ConcurrentHashMap<>();
+    private final BillEvents events = new BillEvents();
+
+    private static String normalizeMeter(String meterNumber) {
+        return meterNumber.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public boolean hasCalculated(String username, int year, int monthIndexZeroBased) {
+        int period = BillPeriods.toPackedPeriod(year, monthIndexZeroBased);
+        UserBills bills = userToBills.get(username);
+        return bills != null && period >= 0 && bills.indexOf(period) >= 0;
+    }
+
+    @Override
+    public void addCalculatedPaise(String username, int year, int monthIndexZeroBased, int units, long amountPaise, String meterNumber) {
+        int period = BillPeriods.toPackedPeriod(year, monthIndexZeroBased);
+        if (period < 0) {
+            throw new IllegalArgumentException("Invalid billing period: " + BillStore.toPeriodKey(year, monthIndexZeroBased));
+        }
+        int billUnits = units < 0 ? -1 : units;
+        long billAmount = amountPaise < 0 ? -1 : amountPaise;
+        int meterId = meters.idOf(meterNumber);
+        userToBills.compute(username, (user, bills) -> {
+            if (bills == null) bills = UserBills.EMPTY;
+            int existing = bills.indexOf(period);
+            String replacedMeter = existing >= 0 ? meters.name(bills.meterId(existing)) : null;
+            UserBills updated = bills.with(period, billUnits, billAmount, meterId);
+            if (updated == null) return bills;
+            userTotals.put(user, userTotals.getOrDefault(user, BillTotals.EMPTY).with(period, billUnits, billAmount, existing >= 0));
+            if (replacedMeter != null) unindexMeter(user, replacedMeter, updated);
+            if (meterId != MeterDictionary.NO_METER) {
+                meterOwners.compute(normalizeMeter(meterNumber), (k, owners) -> {
+                    if (owners == null) owners = new CopyOnWriteArraySet<>();
+                    owners.add(user);
+                    return owners;
+                });
+            }
+            // Published while the user's entry is locked, so a user's events stay in order
+            if (!events.isEmpty()) {
+                UserBillStorage.BillRecord record = new UserBillStorage.BillRecord(
+                        BillStore.toPeriodKey(year, monthIndexZeroBased), billUnits, billAmount, meterNumber);
+                if (existing >= 0) {
+                    events.updated(user, record);
+                } else {
+                    events.added(user, record);
+                }
+            }
+            return updated;
+        });
+    }
+
+    @Override
+    public void addListener(BillStoreListener listener) {
+        events.add(listener);
+    }
+
+    @Override
+    public void removeListener(BillStoreListener listener) {
+        events.remove(listener);
+    }
+
+    /**
+     * Drops the user from a meter's owners when none of their remaining bills uses it.
+     */
+    private void unindexMeter(String username, String meterNumber, UserBills bills) {
+        for (int i = 0; i < bills.size(); i++) {
+            String meter = meters.name(bills.meterId(i));
+            if (meter != null && meter.equalsIgnoreCase(meterNumber)) return;
+        }
+        meterOwners.computeIfPresent(normalizeMeter(meterNumber), (k, owners) -> {
+            owners.remove(username);
+            return owners.isEmpty() ? null : owners;
+        });
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecords(String username) {
+        UserBills bills = userToBills.get(username);
+        return bills == null ? Collections.emptyList() : bills.view(0, bills.size(), false, meters);
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecordsNewestFirst(String username) {
+        UserBills bills = userToBills.get(username);
+        return bills == null ? Collections.emptyList() : bills.view(0, bills.size(), true, meters);
+    }
+
+    @Override
+    public List<UserBillStorage.BillRecord> getCalculatedRecords(String username, String fromPeriodKey, String toPeriodKey) {
+        int from = BillPeriods.toPackedPeriod(fromPeriodKey);
+        int to = BillPeriods.toPackedPeriod(toPeriodKey);
+        if (from < 0 || to < 0) {
+            throw new IllegalArgumentException("Invalid period range: " + fromPeriodKey + " to " + toPeriodKey);
+        }
+        UserBills bills = userToBills.get(username);
+        if (bills == null || to < from) return Collections.emptyList();
+        return bills.view(bills.lowerBound(from), bills.lowerBound(to + 1), false, meters);
+    }
+
+    @Override
+    public BillSummary getSummary(String username) {
+        return userTotals.getOrDefault(username, BillTotals.EMPTY).all();
+    }
+
+    @Override
+    public BillSummary getSummary(String username, int year) {
+        return userTotals.getOrDefault(username, BillTotals.EMPTY).year(year);
+    }
+
+    @Override
+    public boolean meterNumberExistsForOtherUser(String meterNumber, String currentUser) {
+        if (meterNumber == null) return false;
+        Set<String> owners = meterOwners.get(normalizeMeter(meterNumber));
+        return owners != null && (owners.size() > 1 || !owners.contains(currentUser));
+    }
+
+    @Override
+    public String getMeterNumberOwner(String meterNumber) {
+        if (meterNumber == null) return null;
+        Set<String> owners = meterOwners.get(normalizeMeter(meterNumber));
+        return owners == null ? null : owners.iterator().next();
+    }
+
+    @Override
+    public UserBillStorage.BillRecord getRecordByMeterAndMonth(String meterNumber, String periodKey) {
+        if (meterNumber == null) return null;
+        int period = BillPeriods.toPackedPeriod(periodKey);
+        Set<String> owners = meterOwners.get(normalizeMeter(meterNumber));
+        if (period < 0 || owners == null) return null;
+        for (String owner : owners) {
+            UserBills bills = userToBills.get(owner);
+            int i = bills == null ? -1 : bills.indexOf(period);
+            if (i >= 0 && meterNumber.equalsIgnoreCase(meters.name(bills.meterId(i)))) {
+                return bills.record(i, meters);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,59 @@
+package com.billing.database;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers every distinct meter number, so packed bills (see UserBills) store a 4-byte id
+ * instead of a String reference, and each meter number is held in memory only once.
+ * Ids are handed out in order and never reused; lookups by id and by name take no lock.
+ */
+final class MeterDictionary {
+
+    static final int NO_METER = -1;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int count; // guarded by this
+
+    /**
+     * Returns the id of the meter number, adding it if it is new. Null or empty means no meter.
+     */
+    int idOf(String meterNumber) {
+        if (meterNumber == null || meterNumber.isEmpty()) return NO_METER;
+        Integer id = ids.get(meterNumber);
+        return id != null ? id : add(meterNumber);
+    }
+
+    /**
+     * True if the meter number already has an id.
+     */
+    boolean contains(String meterNumber) {
+        return ids.containsKey(meterNumber);
+    }
+
+    private synchronized int add(String meterNumber) {
+        Integer id = ids.get(meterNumber);
+        if (id != null) return id;
+        String[] current = names;
+        if (count == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[count] = meterNumber;
+        names = current;
+        ids.put(meterNumber, count);
+        return count++;
+    }
+
+    /**
+     * The meter number for an id, null for {@link #NO_METER}.
+     */
+    String name(int id) {
+        return id < 0 ? null : names[id];
+    }
+
+    synchronized int size() {
+        return count;
+    }
+}
@@ -0,0 +1,273 @@
+package com.billing.database;
+
+import com.billing.logic.Money;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The original text format of user_bills.dat (and of each line in the bill log):
+ * one line per user: username:YYYY-MM|units|amount|meter,YYYY-MM|units|amount|meter,...
+ * Older files may also hold just YYYY-MM or YYYY-MM|units|amount per bill.
+ */
+final class TextBillFile {
+
+    private TextBillFile() {}
+
+    static void read(File file, BillSink sink) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        try (InputStream in = new FileInputStream(file)) {
+            ByteTokenizer.forEachLine(in, (bytes, start, end) -> parseLine(bytes, start, end, charset, sink));
+        }
+    }
+
+    /**
+     * Reads the file in {@code sinks.length} chunks on as many threads, chunk i going to sinks[i].
+     * Each line is one user, so chunks are cut at line breaks and every line is read by exactly
+     * one sink; the chunks follow file order, so merging the sinks' results in order gives what
+     * a single read would.
+     */
+    static void read(File file, BillSink[] sinks) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = new long[sinks.length + 1];
+            for (int i = 1; i < sinks.length; i++) {
+                bounds[i] = nextLineStart(channel, Math.max(bounds[i - 1], size * i / sinks.length));
+            }
+            bounds[sinks.length] = size;
+
+            List<Callable<Void>> chunks = new ArrayList<>();
+            for (int i = 0; i < sinks.length; i++) {
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                BillSink sink = sinks[i];
+                chunks.add(() -> {
+                    ByteTokenizer.forEachLine(channel, from, to,
+                            (bytes, start, end) -> parseLine(bytes, start, end, charset, sink));
+                    return null;
+                });
+            }
+            BillShards.runAll(chunks, sinks.length);
+        }
+    }
+
+    /**
+     * Offset of the first line that starts at or after {@code position}.
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        if (position == 0) return 0;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long at = position - 1;
+        while (true) {
+            buffer.clear();
+            int n = channel.read(buffer, at);
+            if (n <= 0) return channel.size();
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') return at + i + 1;
+            }
+            at += n;
+        }
+    }
+
+    /**
+     * Records the byte range of every user's line and tells {@code meterUse} about the meters
+     * on each line, and {@code billUse} (unless null) about each valid period, without creating
+     * any bill records.
+     */
+    static void index(File file, BillFileIndex index, BiConsumer<String, String> meterUse,
+                      ObjIntConsumer<String> billUse) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        byte[] buffer = new byte[1 << 16];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long lineStart = 0;
+        long position = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        indexLine(line, lineLength, lineStart, charset, index, meterUse, billUse);
+                        lineLength = 0;
+                        lineStart = position + i + 1;
+                        continue;
+                    }
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+                position += n;
+            }
+        }
+        indexLine(line, lineLength, lineStart, charset, index, meterUse, billUse);
+    }
+
+    private static void indexLine(byte[] line, int length, long offset, Charset charset, BillFileIndex index,
+                                  BiConsumer<String, String> meterUse, ObjIntConsumer<String> billUse) {
+        if (length > 0 && line[length - 1] == '\r') length--;
+        int colon = 0;
+        while (colon < length && line[colon] != ':') colon++;
+        if (colon == length) return;
+        String username = new String(line, 0, colon, charset).trim();
+        index.addRange(username, offset, length);
+
+        // The period is the first and the meter the fourth '|' field of each ',' separated bill
+        String lastMeter = null;
+        int field = 0;
+        int billStart = colon + 1;
+        int meterStart = -1;
+        for (int i = colon + 1; i <= length; i++) {
+            byte b = i < length ? line[i] : (byte) ',';
+            if (b != '|' && b != ',') continue;
+            if (field == 0 && billUse != null) {
+                int from = ByteTokenizer.skipSpace(line, billStart, i);
+                int period = ByteTokenizer.parsePeriod(line, from, ByteTokenizer.trimEnd(line, from, i));
+                if (period >= 0) billUse.accept(username, period);
+            }
+            if (field == 3) {
+                String meter = new String(line, meterStart, i - meterStart, charset).trim();
+                if (!meter.isEmpty() && !meter.equals(lastMeter)) {
+                    meterUse.accept(username, meter);
+                    lastMeter = meter;
+                }
+            }
+            if (b == ',') {
+                field = 0;
+                billStart = i + 1;
+            } else if (++field == 3) {
+                meterStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Parses one snapshot or log line, bytes[from, to): username:YYYY-MM|units|amount|meter,...
+     * Fields are read in place (see ByteTokenizer); a bill whose period is not YYYY-MM is
+     * passed on as a BillRecord with the period as written, for the sink to deal with.
+     */
+    static void parseLine(byte[] bytes, int from, int to, Charset charset, BillSink sink) {
+        from = ByteTokenizer.skipSpace(bytes, from, to);
+        to = ByteTokenizer.trimEnd(bytes, from, to);
+        int colon = ByteTokenizer.indexOf(bytes, from, to, ':');
+        if (colon < 0) return;
+        String username = ByteTokenizer.string(bytes, from, ByteTokenizer.trimEnd(bytes, from, colon), charset);
+        sink.user(username);
+
+        // A user's bills are normally all on one meter, so its String is made once per line
+        String meterNumber = null;
+        int meterFrom = 0;
+        int meterTo = 0;
+        // One pass over the bills: note where the '|' of the current bill are until its ','
+        int billFrom = colon + 1;
+        int bar1 = -1;
+        int bar2 = -1;
+        int bar3 = -1;
+        int bar4 = -1;
+        for (int i = billFrom; i <= to; i++) {
+            byte b = i < to ? bytes[i] : (byte) ',';
+            if (b == '|') {
+                if (bar1 < 0) bar1 = i;
+                else if (bar2 < 0) bar2 = i;
+                else if (bar3 < 0) bar3 = i;
+                else if (bar4 < 0) bar4 = i;
+                continue;
+            }
+            if (b != ',') continue;
+
+            int start = ByteTokenizer.skipSpace(bytes, billFrom, i);
+            int end = ByteTokenizer.trimEnd(bytes, start, i);
+            billFrom = i + 1;
+            if (start < end) {
+                // Support formats: YYYY-MM, YYYY-MM|units|amount, or YYYY-MM|units|amount|meter
+                int units = -1;
+                long amountPaise = -1;
+                String meter = null;
+                if (bar2 >= 0) {
+                    units = ByteTokenizer.parseInt(bytes, bar1 + 1, bar2);
+                    // Amounts are rupees with two decimals; older files used Double.toString
+                    amountPaise = ByteTokenizer.parsePaise(bytes, bar2 + 1, bar3 < 0 ? end : bar3);
+                }
+                if (bar3 >= 0) {
+                    int mFrom = ByteTokenizer.skipSpace(bytes, bar3 + 1, bar4 < 0 ? end : bar4);
+                    int mTo = ByteTokenizer.trimEnd(bytes, mFrom, bar4 < 0 ? end : bar4);
+                    if (mFrom < mTo) {
+                        if (meterNumber == null || !ByteTokenizer.sameBytes(bytes, mFrom, mTo, bytes, meterFrom, meterTo)) {
+                            meterNumber = ByteTokenizer.string(bytes, mFrom, mTo, charset);
+                            meterFrom = mFrom;
+                            meterTo = mTo;
+                        }
+                        meter = meterNumber;
+                    }
+                }
+                int periodEnd = bar1 < 0 ? end : bar1;
+                int period = ByteTokenizer.parsePeriod(bytes, start, periodEnd);
+                if (period >= 0) {
+                    sink.record(username, period, units, amountPaise, meter);
+                } else {
+                    String periodKey = ByteTokenizer.string(bytes, start, periodEnd, charset);
+                    sink.record(username, new UserBillStorage.BillRecord(periodKey, units, amountPaise, meter));
+                }
+            }
+            bar1 = bar2 = bar3 = bar4 = -1;
+        }
+    }
+
+    static void appendRecord(StringBuilder sb, UserBillStorage.BillRecord r) {
+        appendRecord(sb, r.periodKey, r.units, r.amountPaise, r.meterNumber);
+    }
+
+    private static void appendRecord(StringBuilder sb, String periodKey, int units, long amountPaise, String meterNumber) {
+        // Write with details if available
+        if (units >= 0 && amountPaise >= 0) {
+            sb.append(periodKey).append('|').append(units).append('|');
+            Money.appendTo(sb, amountPaise);
+            if (meterNumber != null && !meterNumber.isEmpty()) {
+                sb.append('|').append(meterNumber);
+            }
+        } else {
+            sb.append(periodKey);
+        }
+    }
+
+    static void write(File file, Map<String, UserBills> users, MeterDictionary meters) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, UserBills> entry : users.entrySet()) {
+                writeUser(bw, sb, entry.getKey(), entry.getValue(), meters);
+            }
+        }
+    }
+
+    /**
+     * Writes one user's line; {@code sb} is scratch space that can be reused across calls.
+     */
+    static void writeUser(BufferedWriter bw, StringBuilder sb, String username, UserBills bills,
+                          MeterDictionary meters) throws IOException {
+        sb.setLength(0);
+        sb.append(username).append(":");
+        for (int i = 0; i < bills.size(); i++) {
+            if (i > 0) sb.append(',');
+            appendRecord(sb, BillPeriods.toPeriodKey(bills.period(i)), bills.units(i), bills.amountPaise(i),
+                    meters.name(bills.meterId(i)));
+        }
+        bw.write(sb.toString());
+        bw.newLine();
+    }
+}
@@ -1,99 +1,1251 @@
 package com.billing.database;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import com.billing.config.AppConfig;
+import com.billing.logic.Money;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Simple file-based storage to track which billing months a user has already calculated/saved.
- * File format (user_bills.dat): one line per user: username:YYYY-MM,YYYY-MM,...
+ * File format (user_bills.dat): one line per user: username:YYYY-MM|units|amount|meter,...
+ * With storage.format=binary the snapshot is user_bills.bin instead (see BinaryBillFile).
+ * Bills added since that snapshot was written are in user_bills.dat.log (see BillLog);
+ * on startup the snapshot is loaded and the log replayed on top of it.
+ *
+ * In memory each user's bills are packed into primitive arrays sorted by period (see UserBills),
+ * with meter numbers replaced by ids from one shared MeterDictionary. BillRecord objects are
+ * only created for callers that ask for them.
+ *
+ * With storage.load=lazy only an index of where each user's bills are in the snapshot
+ * (see BillFileIndex) and the meter owner index are built at startup. A user's bills are
+ * read the first time they are needed, and only the storage.cache.users most recently
+ * used users stay in memory. Bills from the log are kept aside until the next snapshot,
+ * so evicting a user never loses anything.
+ *
+ * With storage.shards=N the users are split by username hash into N shards (see BillShards),
+ * each with its own snapshot and log: a new bill is appended to its user's shard only, a
+ * snapshot rewrites one shard, and the shards are loaded in parallel.
+ *
+ * With storage.shared=true several processes can use the same files: each one locks a shard's
+ * files while it changes them or reads what others appended (see BillFileLock), and a
+ * background thread checks every storage.shared.poll.ms whether another process added bills,
+ * reading only the new part of the log and telling the listeners about them.
+ *
+ * With storage.archive.years=N, bills of years more than N years back are moved out of the
+ * snapshot into one compressed archive per shard and year (see BillArchive) when a snapshot
+ * is written, and dropped from memory. Queries that reach back that far read the user's
+ * block of the year's archive; only the archives' block indexes and their meters (for the
+ * meter owner index) are loaded at startup.
+ *
+ * A user's summary (count, units, amount, lowest and highest bill; see BillTotals) is added up
+ * from all their bills the first time it is asked for and then kept up to date by every bill
+ * stored for them, so summaries cost a map lookup instead of a pass over the bills and archives.
+ *
+ * This is the engine behind storage.mode=file; the GUI reaches it through BillStore (see BillStores).
+ *
+ * Thread safety: all maps are concurrent and UserBills are immutable, so reads take no lock at all. Writes lock only
+ * the stripe of the user they change, so different users are written in parallel. Writers
+ * share the read side of persistLock; loading takes its write side, and a snapshot takes it
+ * briefly to pick the state to write and again to swap in the new files, which keeps the
+ * in-memory state and the files in step. In shared mode queries take the read side as well,
+ * since a reload rebuilds the maps, dictionary and filters under its write side; record
+ * lists already handed out stay valid across it.
+ *
+ * Saving a bill does no I/O on the caller's thread: the log line is queued for the
+ * background BillWriter, which appends new bills in groups every storage.flush.ms. When the
+ * log is long enough, a snapshot is written on a thread of its own. storage.durability
+ * decides whether each group is forced to disk and whether addCalculated waits for it;
+ * {@link #flush()} waits for everything queued so far and runs when the application exits.
  */
 public class UserBillStorage {
-    private static final String STORAGE_FILE = "user_bills.dat";
-    // username -> periodKey -> BillRecord
-    private static final Map<String, Map<String, BillRecord>> userToRecords = new HashMap<>();
+    private static volatile String storageFile = AppConfig.getBillStorageFile();
+    // storage.shards: users are split by hash into this many shards, each with its own files (see BillShards)
+    private static final Shard[] shards = new Shard[AppConfig.getBillShards()];
+    // Meter numbers of all bills, referenced by id from UserBills. Replaced, not cleared, by a
+    // reload, so record lists handed out before it keep resolving their ids in the old one.
+    private static volatile MeterDictionary meters = new MeterDictionary();
+    // normalized meter number -> users with a bill on that meter (normally exactly one)
+    private static final Map<String, Set<String>> meterOwners = new ConcurrentHashMap<>();
+    private static final int COMPACT_EVERY = AppConfig.getBillLogCompactEntries();
+    // Snapshots are written as user_bills.bin (see BinaryBillFile) instead of text
+    private static final boolean BINARY_FORMAT = "binary".equals(AppConfig.getBillStorageFormat());
+    // storage.durability: fsync forces each group of logged bills to disk, sync also makes writers wait for it
+    private static final String DURABILITY = AppConfig.getBillDurability();
+    private static final boolean FORCE = !"buffered".equals(DURABILITY);
+    private static final boolean WAIT_FOR_DISK = "sync".equals(DURABILITY);
+    // Appends logged bills in the background, see commitLogged
+    private static final BillWriter writer = new BillWriter("bill-writer", AppConfig.getBillFlushMillis(),
+            UserBillStorage::commitLogged);
+    // Snapshots are written on their own thread, so the writer keeps committing bills meanwhile
+    private static final ExecutorService snapshotter = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "bill-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // storage.shared: other processes use the same files, see BillFileLock and syncShards
+    private static final boolean SHARED = AppConfig.isBillStorageShared();
+    // storage.load=lazy: users are read from the snapshot on first access, see the class comment.
+    // A shared snapshot can be replaced by another process at any time, which a lazy index cannot follow.
+    private static final boolean LAZY = "lazy".equals(AppConfig.getBillStorageLoad()) && !SHARED;
+    private static final int CACHE_USERS = AppConfig.getBillCacheUsers();
+    // Threads that load the shards, and chunks of a large text snapshot (see BillShards.readSnapshots)
+    private static final int LOAD_THREADS = AppConfig.getBillLoadThreads();
+    // Lazy mode: cached users, least recently used first
+    private static final LinkedHashMap<String, Boolean> recentUsers = new LinkedHashMap<>(16, 0.75f, true);
+
+    // One lock per stripe of users; a user always maps to the same stripe
+    private static final Object[] USER_LOCKS = new Object[64];
+    private static final ReentrantReadWriteLock persistLock = new ReentrantReadWriteLock();
+    // Told about every bill added or replaced, see BillStoreListener
+    private static final BillEvents events = new BillEvents();
+    private static final double FILTER_FPP = AppConfig.getBillFilterFalsePositiveRate();
+    // Every meter number (lower case), so most checks for a new meter end without a lookup;
+    // rebuilt on load, null with storage.filter.fpp=0
+    private static volatile BloomFilter meterFilter;
+    // Lazy mode: every (user, period) key, so checking a month a user has no bill for does not
+    // read the user from disk. Eagerly loaded bills are a map lookup away, so there it is null.
+    private static volatile BloomFilter billKeyFilter;
+    // storage.archive.years: older years go to BillArchive files, 0 keeps every bill in the snapshot
+    private static final int ARCHIVE_YEARS = AppConfig.getBillArchiveYears();
+    // username -> running totals of all the user's bills, archived ones included (see getSummary).
+    // Built the first time a user's summary is asked for, then counted on by every bill stored
+    // for them; written under the user's lock.
+    private static final Map<String, BillTotals> totals = new ConcurrentHashMap<>();
+
+    /**
+     * One storage.shards part of the history: the users whose name hashes to it, with their
+     * own snapshot and log. With a single shard this is simply user_bills.dat and its log.
+     */
+    private static final class Shard {
+        final int number;
+        // The text snapshot; the binary snapshot and the log sit next to it
+        volatile String file;
+        // username -> that user's bills (in lazy mode: only the cached users)
+        final Map<String, UserBills> users = new ConcurrentHashMap<>();
+        // New bills are appended here; see BillLog
+        volatile BillLog log;
+        // Lazy mode: where each user's bills are in the snapshot, null if there is no snapshot
+        volatile BillFileIndex snapshotIndex;
+        // Lazy mode: bills logged since the snapshot, per user
+        final Map<String, UserBills> loggedBills = new ConcurrentHashMap<>();
+        final AtomicBoolean snapshotQueued = new AtomicBoolean();
+        // year -> the shard's archive of that year; replaced as a whole when one changes
+        volatile NavigableMap<Integer, BillArchive> archives = Collections.emptyNavigableMap();
+        // One snapshot of the shard is written at a time
+        final Object snapshotLock = new Object();
+        // Shared mode (null otherwise): the lock other processes take too, and how far this
+        // process has read the files (the lock's sequence and the position in the log).
+        // Guarded by the file lock; read without it only to see whether anything changed.
+        volatile BillFileLock fileLock;
+        volatile long sequence;
+        volatile long logPosition;
+        // Log length when it was last read, including a line still being written
+        volatile long logSeen;
+        // Set when the files changed more than catchUpLocked can follow
+        volatile boolean reloadNeeded;
+
+        Shard(int number) {
+            this.number = number;
+        }
+    }
+
+    static {
+        for (int i = 0; i < USER_LOCKS.length; i++) {
+            USER_LOCKS[i] = new Object();
+        }
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    private static Shard shardFor(String username) {
+        return shards[BillShards.shardOf(username, shards.length)];
+    }
+
+    /**
+     * Eager mode: applies a shard's logged bills one by one, keeping the meter index in step.
+     * With {@code publish} the listeners are told about each bill that was stored, as for
+     * bills that other processes appended to a shared log.
+     */
+    private static BillSink logLoader(Shard shard, boolean publish) {
+        return new BillSink() {
+            @Override
+            public void user(String username) {
+                shard.users.putIfAbsent(username, UserBills.EMPTY);
+            }
+
+            @Override
+            public void record(String username, BillRecord record) {
+                int period = toPackedPeriod(record.periodKey);
+                if (period >= 0) record(username, period, record.units, record.amountPaise, record.meterNumber);
+            }
+
+            @Override
+            public void record(String username, int period, int units, long amountPaise, String meterNumber) {
+                synchronized (lockFor(username)) {
+                    UserBills bills = shard.users.getOrDefault(username, UserBills.EMPTY);
+                    boolean replaced = bills.indexOf(period) >= 0;
+                    UserBills updated = putBillLocked(username, bills, period, units, amountPaise, meters.idOf(meterNumber));
+                    if (updated == null) return;
+                    shard.users.put(username, updated);
+                    if (totals.containsKey(username)) {
+                        // The bill may have replaced an archived one that was saved without details
+                        countBillLocked(username, period, units, amountPaise, replaced || isArchived(username, period));
+                    }
+                    if (publish && !events.isEmpty()) {
+                        BillRecord record = new BillRecord(BillPeriods.toPeriodKey(period), units, amountPaise, meterNumber);
+                        if (replaced) {
+                            events.updated(username, record);
+                        } else {
+                            events.added(username, record);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Lazy mode: keeps a shard's logged bills aside and adds their meters to the owner index.
+     */
+    private static BillSink lazyLogLoader(Shard shard) {
+        return new BillSink() {
+            @Override
+            public void user(String username) {
+                shard.loggedBills.putIfAbsent(username, UserBills.EMPTY);
+            }
+
+            @Override
+            public void record(String username, BillRecord record) {
+                int period = toPackedPeriod(record.periodKey);
+                if (period >= 0) record(username, period, record.units, record.amountPaise, record.meterNumber);
+            }
+
+            @Override
+            public void record(String username, int period, int units, long amountPaise, String meterNumber) {
+                addBillKey(username, period);
+                UserBills logged = shard.loggedBills.getOrDefault(username, UserBills.EMPTY);
+                UserBills updated = logged.with(period, units, amountPaise, meters.idOf(meterNumber));
+                if (updated != null) shard.loggedBills.put(username, updated);
+                if (meterNumber != null && !meterNumber.isEmpty()) {
+                    addMeterOwner(username, meterNumber);
+                }
+            }
+        };
+    }
 
     static {
         load();
+        Runtime.getRuntime().addShutdownHook(new Thread(UserBillStorage::flush, "bill-writer-flush"));
+        if (SHARED) {
+            long pollMillis = AppConfig.getBillSharedPollMillis();
+            ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "bill-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(UserBillStorage::syncShards, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops everything in memory and loads the given file instead.
+     * Used by the benchmarks to point the store at generated data.
+     */
+    static void useStorageFile(String path) {
+        // Bills still queued belong to the old file
+        flush();
+        useStorageFile(path, 0, false);
     }
 
-    private static synchronized void load() {
-        File file = new File(STORAGE_FILE);
-        if (!file.exists()) {
+    /**
+     * Takes the snapshot lock of every shard from {@code shard} on, in order, so that no
+     * snapshot is written while the files change.
+     */
+    private static void useStorageFile(String path, int shard, boolean keepUncommitted) {
+        if (shard == shards.length) {
+            useStorageFileLocked(path, keepUncommitted);
             return;
         }
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = line.split(":", 2);
-                if (parts.length != 2) continue;
-                String username = parts[0].trim();
-                String monthsCsv = parts[1].trim();
-                Map<String, BillRecord> records = new HashMap<>();
-                if (!monthsCsv.isEmpty()) {
-                    for (String token : monthsCsv.split(",")) {
-                        String t = token.trim();
-                        if (t.isEmpty()) continue;
-                        // Support formats: YYYY-MM, YYYY-MM|units|amount, or YYYY-MM|units|amount|meter
-                        String[] fields = t.split("\\|");
-                        String periodKey = fields[0];
-                        int units = -1;
-                        double amount = -1;
-                        String meterNumber = null;
-                        if (fields.length >= 3) {
-                            try { units = Integer.parseInt(fields[1]); } catch (Exception ignored) {}
-                            try { amount = Double.parseDouble(fields[2]); } catch (Exception ignored) {}
-                        }
-                        if (fields.length >= 4) {
-                            meterNumber = fields[3].trim();
-                        }
-                        records.put(periodKey, new BillRecord(periodKey, units, amount, meterNumber));
+        synchronized (shards[shard].snapshotLock) {
+            useStorageFile(path, shard + 1, keepUncommitted);
+        }
+    }
+
+    /**
+     * @param keepUncommitted apply the bills still queued for the log again after loading,
+     *                        as they are not in the files yet
+     */
+    private static void useStorageFileLocked(String path, boolean keepUncommitted) {
+        persistLock.writeLock().lock();
+        try {
+            List<String> uncommitted = keepUncommitted ? writer.uncommitted() : Collections.emptyList();
+            storageFile = path;
+            for (Shard shard : shards) {
+                shard.users.clear();
+                shard.loggedBills.clear();
+            }
+            meterOwners.clear();
+            totals.clear();
+            synchronized (recentUsers) {
+                recentUsers.clear();
+            }
+            meters = new MeterDictionary();
+            load();
+            Charset charset = Charset.defaultCharset();
+            for (String line : uncommitted) {
+                Shard shard = shardFor(line.substring(0, line.indexOf(':')));
+                byte[] bytes = line.getBytes(charset);
+                TextBillFile.parseLine(bytes, 0, bytes.length, charset, LAZY ? lazyLogLoader(shard) : logLoader(shard, false));
+            }
+        } finally {
+            persistLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads each shard's snapshot, then replays the bills logged since it was written.
+     */
+    static void load() {
+        persistLock.writeLock().lock();
+        try {
+            loadFiles();
+        } finally {
+            persistLock.writeLock().unlock();
+        }
+    }
+
+    private static void loadFiles() {
+        if (SHARED) lockSharedFiles();
+        try {
+            loadFilesLocked();
+        } finally {
+            for (Shard shard : shards) {
+                if (shard.fileLock != null) shard.fileLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Shared mode: opens each shard's lock file (again, as the files may have moved) and takes
+     * the locks in shard order, so that the files hold still while they are loaded.
+     */
+    private static void lockSharedFiles() {
+        for (Shard shard : shards) {
+            if (shard.fileLock != null) shard.fileLock.close();
+            shard.fileLock = null;
+            shard.reloadNeeded = false;
+            File lockFile = BillFileLock.lockFile(BillShards.shardFile(storageFile, shard.number, shards.length));
+            try {
+                BillFileLock fileLock = new BillFileLock(lockFile);
+                fileLock.lock();
+                shard.fileLock = fileLock;
+            } catch (IOException e) {
+                System.err.println("Failed to open " + lockFile + ", bills saved by other processes will not be seen: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private static void loadFilesLocked() {
+        long start = System.nanoTime();
+        for (File other : BillShards.otherLayoutFiles(storageFile, shards.length)) {
+            System.err.println("Not loading " + other + ": it was written for a different storage.shards"
+                    + " (see com.billing.migration.ReshardBillHistory)");
+        }
+        File[] snapshots = new File[shards.length];
+        List<Map<String, UserBills>> targets = new ArrayList<>();
+        // A bill takes at least 24 bytes in either format, so this is an upper estimate
+        long expectedBills = (long) COMPACT_EVERY * shards.length;
+        for (Shard shard : shards) {
+            shard.file = BillShards.shardFile(storageFile, shard.number, shards.length);
+            snapshots[shard.number] = BillShards.newestSnapshot(shard.file);
+            targets.add(shard.users);
+            if (snapshots[shard.number] != null) expectedBills += snapshots[shard.number].length() / 24;
+        }
+        // Users rarely change meters, so there are far fewer meters than bills
+        meterFilter = FILTER_FPP > 0 ? new BloomFilter(expectedBills / 8, FILTER_FPP) : null;
+        billKeyFilter = FILTER_FPP > 0 && LAZY ? new BloomFilter(expectedBills, FILTER_FPP) : null;
+        // Shards are read in parallel by BillShards, which must not call back into this class
+        if (LAZY) {
+            BillFileIndex[] indexes = BillShards.indexSnapshots(snapshots, LOAD_THREADS, UserBillStorage::addMeterOwner,
+                    billKeyFilter);
+            for (Shard shard : shards) {
+                shard.snapshotIndex = indexes[shard.number];
+            }
+        } else {
+            long[] skipped = BillShards.readSnapshots(snapshots, targets, meters, LOAD_THREADS);
+            for (Shard shard : shards) {
+                if (skipped[shard.number] > 0) {
+                    System.err.println("Skipped " + skipped[shard.number] + " bills with an invalid period in "
+                            + snapshots[shard.number]);
+                }
+                indexAllMeters(shard);
+            }
+        }
+
+        // Only the block indexes of the archives are read, and their meters for the owner index
+        int archiveCount = 0;
+        for (Shard shard : shards) {
+            shard.archives = openArchives(shard.file);
+            archiveCount += shard.archives.size();
+            for (BillArchive archive : shard.archives.values()) {
+                try {
+                    archive.readMeters(UserBillStorage::addMeterOwner);
+                } catch (IOException e) {
+                    System.err.println("Failed to read the meters of " + archive.getFile() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        Charset charset = Charset.defaultCharset();
+        for (Shard shard : shards) {
+            if (shard.log != null) shard.log.close();
+            BillFileLock fileLock = shard.fileLock;
+            shard.log = new BillLog(BillShards.logFile(shard.file), fileLock != null);
+            try {
+                BillSink sink = LAZY ? lazyLogLoader(shard) : logLoader(shard, false);
+                long position = shard.log.replay((bytes, from, to) -> TextBillFile.parseLine(bytes, from, to, charset, sink));
+                if (fileLock != null) {
+                    shard.sequence = fileLock.repair();
+                    shard.logPosition = position;
+                    shard.logSeen = shard.log.getFile().length();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to replay user bill log: " + e.getMessage());
+            }
+        }
+
+        // Eager mode: a history written before its oldest years turned cold is archived right away
+        if (!LAZY) {
+            int coldBefore = coldBefore();
+            for (Shard shard : shards) {
+                for (UserBills bills : shard.users.values()) {
+                    if (bills.size() > 0 && bills.period(0) < coldBefore) {
+                        archiveSoon(shard);
+                        break;
                     }
                 }
-                userToRecords.put(username, records);
+            }
+        }
+
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        String what = LAZY ? "Indexed bills of " + knownUsers().size() + " users (lazy, caching " + CACHE_USERS + ")"
+                : "Loaded bills for " + cachedUserCount() + " users";
+        String from = shards.length > 1 ? " from " + shards.length + " shards of " + new File(storageFile).getName()
+                : snapshots[0] != null ? " from " + snapshots[0].getName() : "";
+        String archived = archiveCount > 0 ? " and " + archiveCount + " archived years" : "";
+        System.out.println(what + from + archived + " in " + elapsedMs + " ms; " + describeIndexes());
+    }
+
+    private static NavigableMap<Integer, BillArchive> openArchives(String file) {
+        NavigableMap<Integer, BillArchive> archives = new TreeMap<>();
+        for (Map.Entry<Integer, File> entry : BillShards.archiveFiles(file).entrySet()) {
+            try {
+                archives.put(entry.getKey(), BillArchive.open(entry.getValue()));
+            } catch (IOException e) {
+                System.err.println("Not reading archived bills in " + entry.getValue() + ": " + e.getMessage());
+            }
+        }
+        return Collections.unmodifiableNavigableMap(archives);
+    }
+
+    /**
+     * Eager mode: fills the meter owner index from all bills loaded into a shard.
+     */
+    private static void indexAllMeters(Shard shard) {
+        for (Map.Entry<String, UserBills> entry : shard.users.entrySet()) {
+            UserBills bills = entry.getValue();
+            int previous = MeterDictionary.NO_METER;
+            for (int i = 0; i < bills.size(); i++) {
+                int meterId = bills.meterId(i);
+                if (meterId != MeterDictionary.NO_METER && meterId != previous) {
+                    addMeterOwner(entry.getKey(), meters.name(meterId));
+                    previous = meterId;
+                }
+            }
+        }
+    }
+
+    /**
+     * Users whose bills are in memory: all of them when loading eagerly, the cached ones when lazy.
+     */
+    private static int cachedUserCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.users.size();
+        }
+        return count;
+    }
+
+    /**
+     * Size and estimated heap use of the meter index and dictionary, e.g. for the startup log.
+     * Estimates assume compressed references: a HashMap entry is ~32 bytes plus its table slot
+     * and a small owner set ~80 bytes.
+     */
+    static String describeIndexes() {
+        long meterBytes = meterOwners.size() * (36L + 80L);
+        long filterBytes = 0;
+        for (BloomFilter filter : new BloomFilter[] { meterFilter, billKeyFilter }) {
+            if (filter != null) filterBytes += filter.sizeBytes();
+        }
+        String filters = filterBytes > 0 ? ", filters ~" + filterBytes / 1024 + " KB" : "";
+        return "indexes: " + meterOwners.size() + " meters (~" + meterBytes / 1024 + " KB), "
+                + meters.size() + " distinct meter numbers" + filters;
+    }
+
+    /**
+     * Size, false-positive rates and hit counts of the meter and bill key Bloom filters
+     * (storage.filter.fpp), one line each.
+     */
+    public static String describeKeyFilters() {
+        BloomFilter meterKeys = meterFilter;
+        BloomFilter billKeys = billKeyFilter;
+        return "Meter filter: " + (meterKeys == null ? "off (storage.filter.fpp=0)" : meterKeys.describe())
+                + System.lineSeparator() + "Bill filter: "
+                + (billKeys != null ? billKeys.describe() : LAZY ? "off (storage.filter.fpp=0)" : "not used (storage.load=eager)");
+    }
+
+    private static void addBillKey(String username, int period) {
+        BloomFilter filter = billKeyFilter;
+        if (filter != null) filter.add(BloomFilter.hash(username, period));
+    }
+
+    /**
+     * False if the user certainly has no bill for the period, so it need not be looked up.
+     */
+    private static boolean mayHaveBill(String username, int period) {
+        BloomFilter filter = billKeyFilter;
+        return filter == null || filter.mightContain(BloomFilter.hash(username, period));
+    }
+
+    /**
+     * False if no bill was ever on the meter (given in lower case, see normalizeMeter).
+     */
+    private static boolean mayHaveMeter(String meterKey) {
+        BloomFilter filter = meterFilter;
+        return filter == null || filter.mightContain(BloomFilter.hash(meterKey));
+    }
+
+    // A lookup the filter let through found nothing: counted for the observed false-positive rate
+    private static void billKeyMissed() {
+        BloomFilter filter = billKeyFilter;
+        if (filter != null) filter.falsePositive();
+    }
+
+    private static void meterMissed() {
+        BloomFilter filter = meterFilter;
+        if (filter != null) filter.falsePositive();
+    }
+
+    private static Object lockFor(String username) {
+        return USER_LOCKS[username.hashCode() & (USER_LOCKS.length - 1)];
+    }
+
+    /**
+     * Adds a bill to the user's bills unless they already have a complete one for that period,
+     * and keeps the meter owner index in step. The caller holds the user's lock and stores the result.
+     * @return the user's new bills, or null if the bill was not stored
+     */
+    private static UserBills putBillLocked(String username, UserBills bills, int period, int units, long amountPaise, int meterId) {
+        // Filters first, so a reader never sees the bill without its key
+        addBillKey(username, period);
+        int existing = bills.indexOf(period);
+        int replacedMeter = existing >= 0 ? bills.meterId(existing) : MeterDictionary.NO_METER;
+        UserBills updated = bills.with(period, units, amountPaise, meterId);
+        if (updated == null) return null;
+        if (replacedMeter != MeterDictionary.NO_METER) {
+            unindexMeter(username, meters.name(replacedMeter), updated);
+        }
+        if (meterId != MeterDictionary.NO_METER) {
+            addMeterOwner(username, meters.name(meterId));
+        }
+        return updated;
+    }
+
+    /**
+     * Counts a bill just stored for the user into their totals, if those were built already.
+     * The caller holds the user's lock.
+     * @param replaced the bill took the place of one saved without units or amount
+     */
+    private static void countBillLocked(String username, int period, int units, long amountPaise, boolean replaced) {
+        BillTotals userTotals = totals.get(username);
+        if (userTotals != null) totals.put(username, userTotals.with(period, units, amountPaise, replaced));
+    }
+
+    /**
+     * Adds the user to the owners of a meter.
+     */
+    private static void addMeterOwner(String username, String meterNumber) {
+        String key = normalizeMeter(meterNumber);
+        BloomFilter filter = meterFilter;
+        if (filter != null) filter.add(BloomFilter.hash(key));
+        meterOwners.compute(key, (k, owners) -> {
+            if (owners == null) owners = new CopyOnWriteArraySet<>();
+            owners.add(username);
+            return owners;
+        });
+    }
+
+    /**
+     * The user's bills, or null if the user has none. In lazy mode this reads the user
+     * from the snapshot when they are not cached.
+     */
+    private static UserBills billsOf(String username) {
+        UserBills bills = shardFor(username).users.get(username);
+        if (!LAZY) return bills;
+        if (bills != null) {
+            cacheUser(username);
+            return bills;
+        }
+        persistLock.readLock().lock();
+        try {
+            synchronized (lockFor(username)) {
+                return loadUserLocked(username);
+            }
+        } finally {
+            persistLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * First period that is not cold: January of the year storage.archive.years before this one,
+     * or the lowest period if nothing is archived.
+     */
+    private static int coldBefore() {
+        return ARCHIVE_YEARS == 0 ? Integer.MIN_VALUE : (LocalDate.now().getYear() - ARCHIVE_YEARS) * 100 + 1;
+    }
+
+    /**
+     * Has the shard's cold bills moved to its archives by the next snapshot, which is written
+     * on the snapshot thread without waiting for the log to fill up.
+     */
+    private static void archiveSoon(Shard shard) {
+        shard.log.requestSnapshot();
+        compactIfNeeded(shard);
+    }
+
+    /**
+     * The archive holding the user's bills of the period's year, null if that year is not archived.
+     */
+    private static BillArchive archiveOf(String username, int period) {
+        NavigableMap<Integer, BillArchive> archives = shardFor(username).archives;
+        return archives.isEmpty() ? null : archives.get(period / 100);
+    }
+
+    /**
+     * The user's bills in one archive, null if there are none or the archive cannot be read.
+     */
+    private static UserBills archivedBills(String username, BillArchive archive) {
+        try {
+            try {
+                return archive.read(username, meters);
+            } catch (BillArchive.ChangedException e) {
+                // More bills of that year were archived since, here or by another process
+                Shard shard = shardFor(username);
+                shard.archives = openArchives(shard.file);
+                archive = shard.archives.get(archive.getYear());
+                return archive == null ? null : archive.read(username, meters);
             }
         } catch (IOException e) {
-            System.err.println("Failed to load user bill storage: " + e.getMessage());
-        }
-    }
-
-    private static synchronized void save() {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(STORAGE_FILE))) {
-            for (Map.Entry<String, Map<String, BillRecord>> entry : userToRecords.entrySet()) {
-                String username = entry.getKey();
-                Map<String, BillRecord> records = entry.getValue();
-                StringBuilder sb = new StringBuilder();
-                sb.append(username).append(":");
-                boolean first = true;
-            for (BillRecord r : records.values()) {
-                if (!first) sb.append(',');
-                // Write with details if available
-                if (r.units >= 0 && r.amount >= 0) {
-                    sb.append(r.periodKey).append('|').append(r.units).append('|').append(r.amount);
-                    if (r.meterNumber != null && !r.meterNumber.isEmpty()) {
-                        sb.append('|').append(r.meterNumber);
+            System.err.println("Failed to read archived bills of " + username + " from " + archive.getFile()
+                    + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * True if the user has a bill for the period in that year's archive.
+     */
+    private static boolean isArchived(String username, int period) {
+        BillArchive archive = archiveOf(username, period);
+        UserBills archived = archive == null ? null : archivedBills(username, archive);
+        return archived != null && archived.indexOf(period) >= 0;
+    }
+
+    /**
+     * The user's bills from {@code hot} (the snapshot and log, as from billsOf) together with those
+     * archived for the years from {@code fromPeriod} to {@code toPeriod}; null if there are none.
+     * Archived bills count as the older copy: a complete one is not replaced by a later bill.
+     */
+    private static UserBills withArchived(String username, UserBills hot, int fromPeriod, int toPeriod) {
+        NavigableMap<Integer, BillArchive> archives = shardFor(username).archives;
+        if (archives.isEmpty() || toPeriod < fromPeriod) return hot;
+        UserBills bills = null;
+        for (BillArchive archive : archives.subMap(fromPeriod / 100, true, toPeriod / 100, true).values()) {
+            UserBills archived = archivedBills(username, archive);
+            if (archived != null) bills = bills == null ? archived : bills.withAll(archived);
+        }
+        if (bills == null) return hot;
+        return hot == null ? bills : bills.withAll(hot);
+    }
+
+    /**
+     * Lazy mode: returns the cached user, or reads them and puts them in the cache.
+     * The caller holds the read side of persistLock and the user's lock.
+     * @return the user's bills, null for a user the store has never seen
+     */
+    private static UserBills loadUserLocked(String username) {
+        Shard shard = shardFor(username);
+        UserBills bills = shard.users.get(username);
+        if (bills == null) {
+            bills = readUserBills(username, shard.snapshotIndex, shard.loggedBills);
+            if (bills == null) return null;
+            shard.users.put(username, bills);
+            if (bills.size() > 0 && bills.period(0) < coldBefore()) archiveSoon(shard);
+        }
+        cacheUser(username);
+        return bills;
+    }
+
+    /**
+     * Lazy mode: the user's bills from a snapshot with the logged ones on top, without caching them.
+     */
+    private static UserBills readUserBills(String username, BillFileIndex index, Map<String, UserBills> loggedByUser) {
+        UserBills logged = loggedByUser.get(username);
+        if (logged == null && (index == null || !index.contains(username))) return null;
+
+        UserBills bills = UserBills.EMPTY;
+        if (index != null && index.contains(username)) {
+            Map<String, UserBills> read = new HashMap<>(2);
+            UserBills.Collector collector = new UserBills.Collector(read, meters);
+            try {
+                index.read(username, collector);
+                collector.finish();
+                bills = read.getOrDefault(username, UserBills.EMPTY);
+            } catch (IOException e) {
+                System.err.println("Failed to load bills of " + username + ": " + e.getMessage());
+            }
+        }
+        return logged == null ? bills : bills.withAll(logged);
+    }
+
+    /**
+     * Lazy mode: marks the user as most recently used and evicts the least recently used
+     * user once the cache is full. Evicted bills are read again on their next access.
+     */
+    private static void cacheUser(String username) {
+        String evicted = null;
+        synchronized (recentUsers) {
+            recentUsers.put(username, Boolean.TRUE);
+            if (recentUsers.size() > CACHE_USERS) {
+                Iterator<String> eldest = recentUsers.keySet().iterator();
+                evicted = eldest.next();
+                eldest.remove();
+            }
+        }
+        if (evicted != null) {
+            shardFor(evicted).users.remove(evicted);
+        }
+    }
+
+    /**
+     * Lazy mode: every user in the snapshot or the log.
+     */
+    private static Set<String> knownUsers() {
+        Set<String> users = new LinkedHashSet<>();
+        for (Shard shard : shards) {
+            users.addAll(knownUsers(shard.snapshotIndex, shard.loggedBills));
+        }
+        return users;
+    }
+
+    private static Set<String> knownUsers(BillFileIndex index, Map<String, UserBills> loggedByUser) {
+        Set<String> users = new LinkedHashSet<>();
+        if (index != null) users.addAll(index.users());
+        users.addAll(loggedByUser.keySet());
+        return users;
+    }
+
+    /**
+     * Lazy mode: all users for writing a snapshot, as given by a snapshot index and the bills
+     * logged on top of it. Each user's bills are read while the snapshot is written, so the
+     * whole history is never in memory at once, and every pass over the view sees the same bills.
+     */
+    private static Map<String, UserBills> allUsersView(BillFileIndex index, Map<String, UserBills> loggedByUser) {
+        Set<String> users = knownUsers(index, loggedByUser);
+        return new AbstractMap<String, UserBills>() {
+            @Override
+            public Set<Entry<String, UserBills>> entrySet() {
+                return new AbstractSet<Entry<String, UserBills>>() {
+                    @Override
+                    public int size() {
+                        return users.size();
                     }
-                } else {
-                    sb.append(r.periodKey);
+
+                    @Override
+                    public Iterator<Entry<String, UserBills>> iterator() {
+                        Iterator<String> names = users.iterator();
+                        return new Iterator<Entry<String, UserBills>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return names.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, UserBills> next() {
+                                String username = names.next();
+                                return new SimpleImmutableEntry<>(username, readUserBills(username, index, loggedByUser));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Meter numbers are compared ignoring case, so the index is keyed by the lower-case form.
+     */
+    private static String normalizeMeter(String meterNumber) {
+        return meterNumber.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Drops the user from a meter's owners when none of their remaining bills uses it, archived
+     * ones included.
+     */
+    private static void unindexMeter(String username, String meterNumber, UserBills bills) {
+        if (usesMeter(bills, meterNumber)) return;
+        // The archives are read only when the bills in memory no longer use the meter, which is rare
+        if (usesMeter(withArchived(username, null, Integer.MIN_VALUE, Integer.MAX_VALUE), meterNumber)) return;
+        meterOwners.computeIfPresent(normalizeMeter(meterNumber), (k, owners) -> {
+            owners.remove(username);
+            return owners.isEmpty() ? null : owners;
+        });
+    }
+
+    private static boolean usesMeter(UserBills bills, String meterNumber) {
+        if (bills == null) return false;
+        for (int i = 0; i < bills.size(); i++) {
+            String meter = meters.name(bills.meterId(i));
+            if (meter != null && meter.equalsIgnoreCase(meterNumber)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues one new bill for the log.
+     * @return the number to wait for with BillWriter.awaitCommitted
+     */
+    private static long logRecord(String username, BillRecord record) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(username).append(':');
+        TextBillFile.appendRecord(sb, record);
+        return writer.submit(sb.toString());
+    }
+
+    /**
+     * Runs on the writer thread: appends a group of queued bills to the logs of their shards
+     * and schedules a snapshot of each shard whose log is long enough. Bills queued
+     * before a snapshot may be appended after it as well; replaying them is harmless, as a
+     * bill is never stored twice. If a log cannot be appended to, this throws and the writer
+     * commits the whole group again later, so shards already appended to get their bills twice.
+     */
+    private static void commitLogged(List<String> lines) {
+        if (shards.length == 1) {
+            commitLogged(shards[0], lines);
+            return;
+        }
+        Map<Shard, List<String>> byShard = new LinkedHashMap<>();
+        for (String line : lines) {
+            String username = line.substring(0, line.indexOf(':'));
+            byShard.computeIfAbsent(shardFor(username), k -> new ArrayList<>()).add(line);
+        }
+        for (Map.Entry<Shard, List<String>> entry : byShard.entrySet()) {
+            commitLogged(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void commitLogged(Shard shard, List<String> lines) {
+        IOException failure = null;
+        persistLock.readLock().lock();
+        try {
+            BillFileLock fileLock = shard.fileLock;
+            if (fileLock == null) {
+                shard.log.appendAll(lines, FORCE);
+            } else {
+                fileLock.lock();
+                try {
+                    // Bills other processes appended are read first, so the position stays exact
+                    boolean current = catchUpLocked(shard);
+                    long length = shard.log.appendAll(lines, FORCE);
+                    if (current) {
+                        shard.logPosition = length;
+                        shard.logSeen = length;
+                    }
+                } finally {
+                    fileLock.unlock();
                 }
-                first = false;
             }
-                bw.write(sb.toString());
-                bw.newLine();
+        } catch (IOException e) {
+            System.err.println("Failed to append to user bill log, a full snapshot will be written: " + e.getMessage());
+            shard.log.requestSnapshot();
+            failure = e;
+        } finally {
+            persistLock.readLock().unlock();
+        }
+        compactIfNeeded(shard);
+        // The writer keeps the group and tries it again, and callers waiting for it are told
+        if (failure != null) throw new UncheckedIOException("Failed to append to user bill log", failure);
+    }
+
+    /**
+     * Waits until every bill saved so far has been written to the log (and forced to disk,
+     * unless storage.durability=buffered).
+     */
+    public static void flush() {
+        writer.flush();
+    }
+
+    /**
+     * Has a shard's log folded into a snapshot on the snapshot thread if it has grown past the threshold.
+     */
+    private static void compactIfNeeded(Shard shard) {
+        if (!shard.log.needsSnapshot(COMPACT_EVERY) || !shard.snapshotQueued.compareAndSet(false, true)) return;
+        snapshotter.execute(() -> {
+            shard.snapshotQueued.set(false);
+            synchronized (shard.snapshotLock) {
+                // A snapshot may have been saved while we waited
+                if (shard.log.needsSnapshot(COMPACT_EVERY)) {
+                    saveSnapshot(shard);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shared mode: applies the bills other processes appended to the shard's log since this
+     * process last read it, and tells the listeners about them. If another process wrote a
+     * snapshot in between, reading goes on in the log it left (see BillFileLock); anything
+     * more than that is flagged for {@link #reloadShared}. The caller holds the shard's file
+     * lock and persistLock.
+     * @return true if this process is now up to date with the files
+     */
+    private static boolean catchUpLocked(Shard shard) {
+        if (shard.reloadNeeded) return false;
+        Charset charset = Charset.defaultCharset();
+        BillSink sink = logLoader(shard, true);
+        ByteTokenizer.LineHandler lines = (bytes, from, to) -> TextBillFile.parseLine(bytes, from, to, charset, sink);
+        try {
+            long sequence = shard.fileLock.sequence();
+            if (sequence != shard.sequence) {
+                if (sequence != shard.sequence + 2) {
+                    shard.reloadNeeded = true;
+                    return false;
+                }
+                long dropped = shard.fileLock.droppedBytes();
+                // Bills the other snapshot took from the log before this process read them
+                if (shard.logPosition < dropped) shard.log.readPrevious(shard.logPosition, dropped, lines);
+                shard.logPosition = Math.max(0, shard.logPosition - dropped);
+                shard.sequence = sequence;
+                // That snapshot may have moved bills into archives
+                shard.archives = openArchives(shard.file);
+                shard.log.snapshotWrittenElsewhere();
+            }
+            long length = shard.log.getFile().length();
+            if (length < shard.logPosition) {
+                // Shortened without a snapshot, e.g. replaced by hand
+                shard.reloadNeeded = true;
+                return false;
+            }
+            if (length > shard.logPosition) shard.logPosition = shard.log.readFrom(shard.logPosition, lines);
+            shard.logSeen = length;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to read bills saved by other processes, reloading: " + e.getMessage());
+            shard.reloadNeeded = true;
+            return false;
+        }
+    }
+
+    /**
+     * Shared mode, on the bill-sync thread every storage.shared.poll.ms: catches up with the
+     * shards other processes changed. A shard whose lock file and log are as this process
+     * left them is skipped after two small reads, without locking anything.
+     */
+    private static void syncShards() {
+        try {
+            boolean reload = false;
+            for (Shard shard : shards) {
+                BillFileLock fileLock = shard.fileLock;
+                if (fileLock == null) continue;
+                if (!shard.reloadNeeded && fileLock.peekSequence() == shard.sequence
+                        && shard.log.getFile().length() == shard.logSeen) {
+                    continue;
+                }
+                persistLock.readLock().lock();
+                fileLock.lock();
+                try {
+                    catchUpLocked(shard);
+                } finally {
+                    fileLock.unlock();
+                    persistLock.readLock().unlock();
+                }
+                reload |= shard.reloadNeeded;
+            }
+            if (reload) reloadShared();
+        } catch (RuntimeException e) {
+            // A scheduled task that throws is not run again
+            System.err.println("Failed to pick up bills saved by other processes: " + e);
+        }
+    }
+
+    /**
+     * Shared mode: loads everything again when the files changed more than catchUpLocked can
+     * follow, e.g. after this process was suspended while others wrote two snapshots. Bills
+     * still queued for the log are kept. Listeners are not told about the bills found this
+     * way; the history table picks them up on Refresh.
+     */
+    private static void reloadShared() {
+        System.err.println("Bill files were changed by other processes beyond what can be followed, reloading them");
+        useStorageFile(storageFile, 0, true);
+    }
+
+    /**
+     * Writes a complete snapshot of every shard and drops the logged bills it now holds.
+     * Each snapshot goes to a temporary file first and then replaces the shard's user_bills.dat,
+     * so a crash never leaves a half-written history behind.
+     */
+    static void save() {
+        for (Shard shard : shards) {
+            synchronized (shard.snapshotLock) {
+                saveSnapshot(shard);
+            }
+        }
+    }
+
+    /**
+     * persistLock's write side is held only to pick the state to write and later to swap in
+     * the new files, not while the snapshot is written, so saving bills and lazy loads carry
+     * on meanwhile. Bills saved after the state was picked stay in the log. The caller holds
+     * the shard's snapshotLock.
+     */
+    private static void saveSnapshot(Shard shard) {
+        File target;
+        Map<String, UserBills> users;
+        Map<String, UserBills> loggedCopy = null;
+        long logged;
+        long sequence = 0;
+        int coldBefore;
+        NavigableMap<Integer, BillArchive> archives;
+        BillFileLock fileLock = shard.fileLock;
+        persistLock.writeLock().lock();
+        if (fileLock != null) fileLock.lock();
+        try {
+            // Shared mode: the snapshot holds everything in the log so far, whoever appended it
+            if (fileLock != null && !catchUpLocked(shard)) return;
+            sequence = shard.sequence;
+            coldBefore = coldBefore();
+            archives = shard.archives;
+            target = BINARY_FORMAT ? BillShards.binaryFile(shard.file) : new File(shard.file);
+            if (LAZY) {
+                loggedCopy = new HashMap<>(shard.loggedBills);
+                users = allUsersView(shard.snapshotIndex, loggedCopy);
+            } else {
+                // UserBills are immutable, so copying the map is enough to hold the state still
+                users = new LinkedHashMap<>(shard.users);
+            }
+            logged = shard.log.markSnapshot();
+            if (fileLock != null) logged = shard.logPosition;
+        } finally {
+            if (fileLock != null) fileLock.unlock();
+            persistLock.writeLock().unlock();
+        }
+
+        // year -> the year's new archive, written next to it first
+        Map<Integer, File> archiveTemps = new TreeMap<>();
+        try {
+            File temp = tempFileFor(target);
+            // Cold bills are collected per year while the snapshot is written without them
+            Map<Integer, Map<String, UserBills>> cold = new TreeMap<>();
+            Map<String, UserBills> archivedFrom = new HashMap<>();
+            Map<String, UserBills> hot = coldBefore == Integer.MIN_VALUE ? users
+                    : withoutCold(users, coldBefore, cold, archivedFrom);
+            if (BINARY_FORMAT) {
+                BinaryBillFile.write(temp, hot, meters);
+            } else {
+                TextBillFile.write(temp, hot, meters);
+            }
+            for (Map.Entry<Integer, Map<String, UserBills>> year : cold.entrySet()) {
+                archiveTemps.put(year.getKey(), writeArchive(shard, archives.get(year.getKey()), year.getKey(), year.getValue()));
+            }
+            // The logged bills are in the new snapshot, which has its own offsets
+            BillFileIndex index = LAZY ? BillFileIndex.build(temp, (user, meter) -> {}, null) : null;
+
+            persistLock.writeLock().lock();
+            if (fileLock != null) fileLock.lock();
+            try {
+                if (fileLock != null && (!catchUpLocked(shard) || shard.sequence != sequence)) {
+                    // Another process wrote a snapshot meanwhile, which already holds these bills
+                    Files.deleteIfExists(temp.toPath());
+                    deleteAll(archiveTemps.values());
+                    return;
+                }
+                if (fileLock != null) fileLock.beginChange();
+                // Archives first: a crash before the snapshot is replaced leaves bills in both, which is harmless
+                if (!archiveTemps.isEmpty()) {
+                    NavigableMap<Integer, BillArchive> updated = new TreeMap<>(shard.archives);
+                    for (Map.Entry<Integer, File> archive : archiveTemps.entrySet()) {
+                        File archiveFile = BillShards.archiveFile(shard.file, archive.getKey());
+                        BillShards.replaceFile(archive.getValue(), archiveFile);
+                        updated.put(archive.getKey(), BillArchive.open(archiveFile));
+                    }
+                    shard.archives = Collections.unmodifiableNavigableMap(updated);
+                }
+                BillShards.replaceFile(temp, target);
+                // The archived bills leave memory, unless the user got new bills since they were picked
+                for (Map.Entry<String, UserBills> entry : archivedFrom.entrySet()) {
+                    UserBills picked = entry.getValue();
+                    if (LAZY) {
+                        shard.users.remove(entry.getKey());
+                    } else {
+                        shard.users.replace(entry.getKey(), picked, picked.slice(picked.lowerBound(coldBefore), picked.size()));
+                    }
+                }
+                if (LAZY) {
+                    shard.snapshotIndex = index.renamedTo(target);
+                    // Users with bills logged since the state was picked keep their logged bills
+                    for (Map.Entry<String, UserBills> entry : loggedCopy.entrySet()) {
+                        shard.loggedBills.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+                shard.log.dropSnapshotted(logged);
+                if (fileLock != null) {
+                    shard.sequence = fileLock.endChange(logged);
+                    shard.logPosition -= logged;
+                    shard.logSeen = shard.log.getFile().length();
+                }
+            } finally {
+                if (fileLock != null) fileLock.unlock();
+                persistLock.writeLock().unlock();
             }
         } catch (IOException e) {
             System.err.println("Failed to save user bill storage: " + e.getMessage());
+            deleteAll(archiveTemps.values());
+            shard.log.requestSnapshot();
+        }
+    }
+
+    /**
+     * The users with only their bills from {@code coldBefore} on, for writing a snapshot. As the
+     * view is iterated, the older bills are put into {@code cold} by year and user, and the
+     * user's bills as picked into {@code archivedFrom}.
+     */
+    private static Map<String, UserBills> withoutCold(Map<String, UserBills> users, int coldBefore,
+                                                      Map<Integer, Map<String, UserBills>> cold,
+                                                      Map<String, UserBills> archivedFrom) {
+        return new AbstractMap<String, UserBills>() {
+            @Override
+            public Set<Entry<String, UserBills>> entrySet() {
+                return new AbstractSet<Entry<String, UserBills>>() {
+                    @Override
+                    public int size() {
+                        return users.size();
+                    }
+
+                    @Override
+                    public Iterator<Entry<String, UserBills>> iterator() {
+                        Iterator<Entry<String, UserBills>> entries = users.entrySet().iterator();
+                        return new Iterator<Entry<String, UserBills>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return entries.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, UserBills> next() {
+                                Entry<String, UserBills> entry = entries.next();
+                                UserBills bills = entry.getValue();
+                                int split = bills == null ? 0 : bills.lowerBound(coldBefore);
+                                if (split == 0) return entry;
+                                archivedFrom.put(entry.getKey(), bills);
+                                for (int from = 0; from < split; ) {
+                                    int year = bills.period(from) / 100;
+                                    int to = Math.min(split, bills.lowerBound((year + 1) * 100));
+                                    cold.computeIfAbsent(year, y -> new TreeMap<>()).put(entry.getKey(), bills.slice(from, to));
+                                    from = to;
+                                }
+                                return new SimpleImmutableEntry<>(entry.getKey(), bills.slice(split, bills.size()));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Writes a year's archive with the bills already in it and the newly cold ones, to a
+     * temporary file next to it. A user's archived bills come first, as the older copy.
+     * @return the temporary file
+     */
+    private static File writeArchive(Shard shard, BillArchive existing, int year, Map<String, UserBills> cold)
+            throws IOException {
+        Map<String, UserBills> users = new TreeMap<>();
+        if (existing != null) {
+            UserBills.Collector collector = new UserBills.Collector(users, meters);
+            existing.readAll(collector);
+            collector.finish();
+        }
+        for (Map.Entry<String, UserBills> entry : cold.entrySet()) {
+            users.merge(entry.getKey(), entry.getValue(), UserBills::withAll);
+        }
+        File target = BillShards.archiveFile(shard.file, year);
+        File temp = tempFileFor(target);
+        try {
+            long bills = BillArchive.write(temp, year, users, meters);
+            System.out.println("Archiving " + bills + " bills of " + year + " in " + target.getName());
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * Where a new version of a file is written before it replaces the file. Processes sharing
+     * the files (storage.shared) may be writing theirs at the same time, so each gets its own.
+     */
+    private static File tempFileFor(File target) throws IOException {
+        if (!SHARED) return new File(target.getPath() + ".tmp");
+        return File.createTempFile(target.getName() + ".", ".tmp", target.getAbsoluteFile().getParentFile());
+    }
+
+    private static void deleteAll(Iterable<File> files) {
+        for (File file : files) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.err.println("Failed to delete " + file + ": " + e.getMessage());
+            }
         }
     }
 
@@ -101,116 +1253,317 @@ public class UserBillStorage {
      * Returns a canonical key like YYYY-MM (01-12) for given inputs.
      */
     public static String toPeriodKey(int year, int monthIndexZeroBased) {
-        int oneBasedMonth = monthIndexZeroBased + 1;
-        String month = (oneBasedMonth < 10 ? "0" : "") + oneBasedMonth;
-        return year + "-" + month;
+        return BillPeriods.toPeriodKey(year, monthIndexZeroBased);
+    }
+
+    /**
+     * Packs a YYYY-MM key into an int yyyymm, e.g. "2024-03" -> 202403. Returns -1 if the key is malformed.
+     */
+    public static int toPackedPeriod(String periodKey) {
+        return BillPeriods.toPackedPeriod(periodKey);
+    }
+
+    /**
+     * Shared mode: holds off a reload (see reloadShared) while a query runs, as it rebuilds the
+     * maps, filters and meter dictionary in place. Nothing else does that under running queries,
+     * so otherwise queries take no lock at all.
+     */
+    private static void beginQuery() {
+        if (SHARED) persistLock.readLock().lock();
     }
 
-    public static synchronized boolean hasCalculated(String username, int year, int monthIndexZeroBased) {
-        String key = toPeriodKey(year, monthIndexZeroBased);
-        Map<String, BillRecord> records = userToRecords.get(username);
-        return records != null && records.containsKey(key);
+    private static void endQuery() {
+        if (SHARED) persistLock.readLock().unlock();
+    }
+
+    public static boolean hasCalculated(String username, int year, int monthIndexZeroBased) {
+        beginQuery();
+        try {
+            int period = BillPeriods.toPackedPeriod(year, monthIndexZeroBased);
+            if (period < 0) return false;
+            // Usually a month not calculated yet: when loading lazily, the filter answers without reading the user
+            if (mayHaveBill(username, period)) {
+                UserBills bills = billsOf(username);
+                if (bills != null && bills.indexOf(period) >= 0) return true;
+                billKeyMissed();
+            }
+            // The filter and the map only know the bills outside the archives; the archive's block
+            // is unpacked only for a year that has one
+            return isArchived(username, period);
+        } finally {
+            endQuery();
+        }
     }
 
     /**
-     * Legacy add method without details. Prefer {@link #addCalculated(String, int, int, int, double, String)}.
+     * Legacy add method without details. Prefer {@link #addCalculatedPaise(String, int, int, int, long, String)}.
      */
-    public static synchronized void addCalculated(String username, int year, int monthIndexZeroBased) {
-        addCalculated(username, year, monthIndexZeroBased, -1, -1, null);
+    public static void addCalculated(String username, int year, int monthIndexZeroBased) {
+        addCalculatedPaise(username, year, monthIndexZeroBased, -1, -1, null);
     }
 
-    public static synchronized void addCalculated(String username, int year, int monthIndexZeroBased, int units, double amount) {
+    public static void addCalculated(String username, int year, int monthIndexZeroBased, int units, double amount) {
         addCalculated(username, year, monthIndexZeroBased, units, amount, null);
     }
 
-    public static synchronized void addCalculated(String username, int year, int monthIndexZeroBased, int units, double amount, String meterNumber) {
-        String key = toPeriodKey(year, monthIndexZeroBased);
-        Map<String, BillRecord> records = userToRecords.computeIfAbsent(username, k -> new HashMap<>());
-        BillRecord existing = records.get(key);
-        if (existing == null || existing.units < 0 || existing.amount < 0) {
-            records.put(key, new BillRecord(key, units, amount, meterNumber));
-            save();
+    /**
+     * Rupee variant of {@link #addCalculatedPaise}; the amount is rounded to the nearest paisa.
+     */
+    public static void addCalculated(String username, int year, int monthIndexZeroBased, int units, double amount, String meterNumber) {
+        addCalculatedPaise(username, year, monthIndexZeroBased, units, amount < 0 ? -1 : Money.fromRupees(amount), meterNumber);
+    }
+
+    /**
+     * Records a calculated bill. The amount is in paise, -1 if unknown.
+     * @throws IllegalArgumentException if the year and month do not make a YYYY-MM period
+     */
+    public static void addCalculatedPaise(String username, int year, int monthIndexZeroBased, int units, long amountPaise, String meterNumber) {
+        int period = BillPeriods.toPackedPeriod(year, monthIndexZeroBased);
+        if (period < 0) {
+            throw new IllegalArgumentException("Invalid billing period: " + toPeriodKey(year, monthIndexZeroBased));
+        }
+        if (units < 0) units = -1;
+        if (amountPaise < 0) amountPaise = -1;
+        long logNumber;
+        persistLock.readLock().lock();
+        try {
+            // Under persistLock, as reloading a shared history starts a new meter dictionary
+            int meterId = meters.idOf(meterNumber);
+            synchronized (lockFor(username)) {
+                Shard shard = shardFor(username);
+                UserBills bills = LAZY ? loadUserLocked(username) : shard.users.get(username);
+                boolean uncached = bills == null;
+                if (uncached) bills = UserBills.EMPTY;
+                boolean replaced = bills.indexOf(period) >= 0;
+                BillArchive archive = archiveOf(username, period);
+                if (archive != null) {
+                    // An archived bill counts like one in memory: only one without details is replaced
+                    UserBills archived = archivedBills(username, archive);
+                    int i = archived == null ? -1 : archived.indexOf(period);
+                    if (i >= 0 && archived.units(i) >= 0 && archived.amountPaise(i) >= 0) return;
+                    replaced |= i >= 0;
+                }
+                UserBills updated = putBillLocked(username, bills, period, units, amountPaise, meterId);
+                if (updated == null) return;
+                shard.users.put(username, updated);
+                countBillLocked(username, period, units, amountPaise, replaced);
+                if (LAZY) {
+                    if (uncached) cacheUser(username);
+                    UserBills logged = shard.loggedBills.getOrDefault(username, UserBills.EMPTY).with(period, units, amountPaise, meterId);
+                    if (logged != null) shard.loggedBills.put(username, logged);
+                }
+                // Logged and published while still holding the user's lock, so a user's events stay in order
+                BillRecord record = new BillRecord(toPeriodKey(year, monthIndexZeroBased), units, amountPaise, meterNumber);
+                logNumber = logRecord(username, record);
+                if (replaced) {
+                    events.updated(username, record);
+                } else {
+                    events.added(username, record);
+                }
+            }
+        } finally {
+            persistLock.readLock().unlock();
+        }
+        // Not while holding persistLock: the writer may need its write side for a snapshot
+        if (WAIT_FOR_DISK) writer.awaitCommitted(logNumber);
+    }
+
+    /**
+     * Starts telling the listener about bills added or replaced from now on (see BillStoreListener).
+     */
+    public static void addListener(BillStoreListener listener) {
+        events.add(listener);
+    }
+
+    public static void removeListener(BillStoreListener listener) {
+        events.remove(listener);
+    }
+
+    /**
+     * All bills of the user, oldest first. Bills are kept in period order, so nothing is
+     * sorted or copied: the list is a read-only snapshot that later bills do not change.
+     * Archived years are read in as well.
+     */
+    public static List<BillRecord> getCalculatedRecords(String username) {
+        beginQuery();
+        try {
+            UserBills bills = withArchived(username, billsOf(username), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            return bills == null ? Collections.emptyList() : bills.view(0, bills.size(), false, meters);
+        } finally {
+            endQuery();
+        }
+    }
+
+    /**
+     * All bills of the user, newest first, as the same kind of read-only snapshot.
+     */
+    public static List<BillRecord> getCalculatedRecordsNewestFirst(String username) {
+        beginQuery();
+        try {
+            UserBills bills = withArchived(username, billsOf(username), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            return bills == null ? Collections.emptyList() : bills.view(0, bills.size(), true, meters);
+        } finally {
+            endQuery();
+        }
+    }
+
+    /**
+     * The user's bills from one period to another, both YYYY-MM and inclusive, oldest first,
+     * e.g. "2019-01" to "2021-12". Two binary searches find the range, so this costs
+     * O(log n + k) for k bills in the range. Only the archives of the years in the range are read.
+     * @throws IllegalArgumentException if either period is not a YYYY-MM key
+     */
+    public static List<BillRecord> getCalculatedRecords(String username, String fromPeriodKey, String toPeriodKey) {
+        beginQuery();
+        try {
+            int from = toPackedPeriod(fromPeriodKey);
+            int to = toPackedPeriod(toPeriodKey);
+            if (from < 0 || to < 0) {
+                throw new IllegalArgumentException("Invalid period range: " + fromPeriodKey + " to " + toPeriodKey);
+            }
+            UserBills bills = withArchived(username, billsOf(username), from, to);
+            if (bills == null || to < from) return Collections.emptyList();
+            return bills.view(bills.lowerBound(from), bills.lowerBound(to + 1), false, meters);
+        } finally {
+            endQuery();
         }
     }
 
-    public static synchronized List<BillRecord> getCalculatedRecords(String username) {
-        Map<String, BillRecord> records = userToRecords.get(username);
-        if (records == null || records.isEmpty()) return Collections.emptyList();
-        List<BillRecord> list = new ArrayList<>(records.values());
-        Collections.sort(list, (a, b) -> a.periodKey.compareTo(b.periodKey));
-        return list;
+    /**
+     * Count, units, amount, lowest and highest amount of all the user's bills, archived years
+     * included. The first call for a user adds up their bills once; from then on each bill is
+     * counted as it is stored, here or (storage.shared) by another process, so this is a map lookup.
+     */
+    public static BillSummary getSummary(String username) {
+        return totalsOf(username).all();
+    }
+
+    /**
+     * The same totals for the user's bills of one year.
+     */
+    public static BillSummary getSummary(String username, int year) {
+        return totalsOf(username).year(year);
+    }
+
+    private static BillTotals totalsOf(String username) {
+        beginQuery();
+        try {
+            BillTotals userTotals = totals.get(username);
+            if (userTotals != null) return userTotals;
+            // Under the user's lock, so that no bill is stored between adding up and publishing the totals
+            synchronized (lockFor(username)) {
+                userTotals = totals.get(username);
+                if (userTotals != null) return userTotals;
+                UserBills hot = LAZY ? loadUserLocked(username) : shardFor(username).users.get(username);
+                UserBills bills = withArchived(username, hot, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                // Not kept for a user the store has never seen
+                if (bills == null) return BillTotals.EMPTY;
+                userTotals = BillTotals.of(bills);
+                totals.put(username, userTotals);
+                return userTotals;
+            }
+        } finally {
+            endQuery();
+        }
     }
 
     /**
      * Check if a meter number already exists for a different user (not the current user)
      * Returns true if meter number exists for another user, false if it's available or belongs to current user
      */
-    public static synchronized boolean meterNumberExistsForOtherUser(String meterNumber, String currentUser) {
-        for (Map.Entry<String, Map<String, BillRecord>> entry : userToRecords.entrySet()) {
-            String username = entry.getKey();
-            // Skip the current user - they can reuse their own meter numbers
-            if (username.equals(currentUser)) {
-                continue;
-            }
-            
-            Map<String, BillRecord> records = entry.getValue();
-            for (BillRecord record : records.values()) {
-                if (record.meterNumber != null && record.meterNumber.equalsIgnoreCase(meterNumber)) {
-                    return true;
-                }
+    public static boolean meterNumberExistsForOtherUser(String meterNumber, String currentUser) {
+        beginQuery();
+        try {
+            if (meterNumber == null) return false;
+            String key = normalizeMeter(meterNumber);
+            // Usually a meter nobody has used: the filter answers without a lookup
+            if (!mayHaveMeter(key)) return false;
+            Set<String> owners = meterOwners.get(key);
+            if (owners == null) {
+                meterMissed();
+                return false;
             }
+            // The current user can reuse their own meter numbers
+            return owners.size() > 1 || !owners.contains(currentUser);
+        } finally {
+            endQuery();
         }
-        return false;
     }
 
     /**
      * Get the username who owns a specific meter number
      */
-    public static synchronized String getMeterNumberOwner(String meterNumber) {
-        for (Map.Entry<String, Map<String, BillRecord>> entry : userToRecords.entrySet()) {
-            String username = entry.getKey();
-            Map<String, BillRecord> records = entry.getValue();
-            for (BillRecord record : records.values()) {
-                if (record.meterNumber != null && record.meterNumber.equalsIgnoreCase(meterNumber)) {
-                    return username;
-                }
+    public static String getMeterNumberOwner(String meterNumber) {
+        beginQuery();
+        try {
+            if (meterNumber == null) return null;
+            String key = normalizeMeter(meterNumber);
+            if (!mayHaveMeter(key)) return null;
+            Set<String> owners = meterOwners.get(key);
+            if (owners == null) {
+                meterMissed();
+                return null;
             }
+            return owners.iterator().next();
+        } finally {
+            endQuery();
         }
-        return null;
     }
 
     /**
-     * Get bill record by meter number and month
+     * Get bill record by meter number and month. The meter's owners come from the meter index
+     * and each owner's bills are sorted by period, so this is a binary search per owner
+     * (normally exactly one) rather than a scan.
      */
-    public static synchronized BillRecord getRecordByMeterAndMonth(String meterNumber, String periodKey) {
-        for (Map<String, BillRecord> records : userToRecords.values()) {
-            for (BillRecord record : records.values()) {
-                if (record.meterNumber != null && record.meterNumber.equalsIgnoreCase(meterNumber) 
-                    && record.periodKey.equals(periodKey)) {
-                    return record;
+    public static BillRecord getRecordByMeterAndMonth(String meterNumber, String periodKey) {
+        beginQuery();
+        try {
+            if (meterNumber == null) return null;
+            int period = toPackedPeriod(periodKey);
+            if (period < 0) return null;
+            String key = normalizeMeter(meterNumber);
+            if (!mayHaveMeter(key)) return null;
+            Set<String> owners = meterOwners.get(key);
+            if (owners == null) {
+                meterMissed();
+                return null;
+            }
+            for (String owner : owners) {
+                BillArchive archive = archiveOf(owner, period);
+                // Lazy loading: skips reading an owner who has no bill that month
+                if (archive == null && !mayHaveBill(owner, period)) continue;
+                UserBills bills = archive == null ? billsOf(owner) : withArchived(owner, billsOf(owner), period, period);
+                int i = bills == null ? -1 : bills.indexOf(period);
+                if (i >= 0 && meterNumber.equalsIgnoreCase(meters.name(bills.meterId(i)))) {
+                    return bills.record(i, meters);
                 }
             }
+            return null;
+        } finally {
+            endQuery();
         }
-        return null;
     }
 
     public static class BillRecord {
         public final String periodKey; // YYYY-MM
         public final int units;        // -1 if unknown
-        public final double amount;    // -1 if unknown
+        public final long amountPaise; // -1 if unknown
+        public final double amount;    // amountPaise in rupees, -1 if unknown
         public final String meterNumber; // Meter number for this bill
 
         public BillRecord(String periodKey, int units, double amount) {
-            this.periodKey = periodKey;
-            this.units = units;
-            this.amount = amount;
-            this.meterNumber = null;
+            this(periodKey, units, amount, null);
         }
 
         public BillRecord(String periodKey, int units, double amount, String meterNumber) {
+            this(periodKey, units, amount < 0 ? -1 : Money.fromRupees(amount), meterNumber);
+        }
+
+        public BillRecord(String periodKey, int units, long amountPaise, String meterNumber) {
             this.periodKey = periodKey;
             this.units = units;
-            this.amount = amount;
+            this.amountPaise = amountPaise;
+            this.amount = amountPaise < 0 ? -1 : Money.toRupees(amountPaise);
             this.meterNumber = meterNumber;
         }
     }
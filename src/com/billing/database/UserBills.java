@@ -0,0 +1,285 @@
+package com.billing.database;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * One user's bills in packed form: parallel primitive arrays sorted by period (yyyymm),
+ * with units, the amount in paise and the meter as a {@link MeterDictionary} id.
+ * That is 20 bytes per bill, instead of a BillRecord with its period String and a map entry.
+ * BillRecords are only created when a caller asks for them.
+ *
+ * Instances are immutable: adding a bill returns a new copy, so readers never take a lock.
+ * A user has a few dozen bills, so the copy is cheap; loading a file uses a {@link Collector}.
+ */
+final class UserBills {
+
+    static final UserBills EMPTY = new UserBills(new int[0], new int[0], new long[0], new int[0]);
+
+    private final int[] periods;   // yyyymm, ascending, no duplicates
+    private final int[] units;     // -1 if unknown
+    private final long[] amounts;  // paise, -1 if unknown
+    private final int[] meters;    // MeterDictionary ids, NO_METER if none
+
+    private UserBills(int[] periods, int[] units, long[] amounts, int[] meters) {
+        this.periods = periods;
+        this.units = units;
+        this.amounts = amounts;
+        this.meters = meters;
+    }
+
+    int size() {
+        return periods.length;
+    }
+
+    int period(int i) {
+        return periods[i];
+    }
+
+    int units(int i) {
+        return units[i];
+    }
+
+    long amountPaise(int i) {
+        return amounts[i];
+    }
+
+    int meterId(int i) {
+        return meters[i];
+    }
+
+    /**
+     * Position of the bill for a period, or a negative number if there is none.
+     */
+    int indexOf(int period) {
+        return Arrays.binarySearch(periods, period);
+    }
+
+    /**
+     * Returns a copy with the bill added, or null if the user already has a complete bill
+     * for that period. A bill without units or amount is replaced, as it always has been.
+     */
+    UserBills with(int period, int billUnits, long amountPaise, int meterId) {
+        int i = indexOf(period);
+        if (i >= 0) {
+            if (units[i] >= 0 && amounts[i] >= 0) return null;
+            UserBills copy = new UserBills(periods, units.clone(), amounts.clone(), meters.clone());
+            copy.units[i] = billUnits;
+            copy.amounts[i] = amountPaise;
+            copy.meters[i] = meterId;
+            return copy;
+        }
+        int at = -i - 1;
+        int n = periods.length;
+        UserBills copy = new UserBills(new int[n + 1], new int[n + 1], new long[n + 1], new int[n + 1]);
+        copy.insert(this, at, period, billUnits, amountPaise, meterId);
+        return copy;
+    }
+
+    private void insert(UserBills from, int at, int period, int billUnits, long amountPaise, int meterId) {
+        int tail = from.periods.length - at;
+        System.arraycopy(from.periods, 0, periods, 0, at);
+        System.arraycopy(from.units, 0, units, 0, at);
+        System.arraycopy(from.amounts, 0, amounts, 0, at);
+        System.arraycopy(from.meters, 0, meters, 0, at);
+        periods[at] = period;
+        units[at] = billUnits;
+        amounts[at] = amountPaise;
+        meters[at] = meterId;
+        System.arraycopy(from.periods, at, periods, at + 1, tail);
+        System.arraycopy(from.units, at, units, at + 1, tail);
+        System.arraycopy(from.amounts, at, amounts, at + 1, tail);
+        System.arraycopy(from.meters, at, meters, at + 1, tail);
+    }
+
+    /**
+     * Adds the other user's bills one by one, with the same rule as {@link #with}.
+     */
+    UserBills withAll(UserBills other) {
+        UserBills result = this;
+        for (int i = 0; i < other.size(); i++) {
+            UserBills next = result.with(other.periods[i], other.units[i], other.amounts[i], other.meters[i]);
+            if (next != null) result = next;
+        }
+        return result;
+    }
+
+    /**
+     * The bills at positions {@code from} to {@code to - 1}, e.g. one year's.
+     */
+    UserBills slice(int from, int to) {
+        if (from == 0 && to == periods.length) return this;
+        return new UserBills(Arrays.copyOfRange(periods, from, to), Arrays.copyOfRange(units, from, to),
+                Arrays.copyOfRange(amounts, from, to), Arrays.copyOfRange(meters, from, to));
+    }
+
+    UserBillStorage.BillRecord record(int i, MeterDictionary meterNames) {
+        return new UserBillStorage.BillRecord(BillPeriods.toPeriodKey(periods[i]), units[i], amounts[i],
+                meterNames.name(meters[i]));
+    }
+
+    /**
+     * Position of the first bill for the given period or a later one.
+     */
+    int lowerBound(int period) {
+        int i = indexOf(period);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * A read-only list of the bills at positions {@code from} to {@code to - 1}, oldest or newest first.
+     * It is backed by these (immutable) arrays, so making it costs nothing and it never changes;
+     * each record is created when it is read.
+     */
+    List<UserBillStorage.BillRecord> view(int from, int to, boolean newestFirst, MeterDictionary meterNames) {
+        if (from >= to) return Collections.emptyList();
+        return new RecordView(from, to, newestFirst, meterNames);
+    }
+
+    private final class RecordView extends AbstractList<UserBillStorage.BillRecord> implements RandomAccess {
+        private final int from;
+        private final int to;
+        private final boolean newestFirst;
+        private final MeterDictionary meterNames;
+
+        RecordView(int from, int to, boolean newestFirst, MeterDictionary meterNames) {
+            this.from = from;
+            this.to = to;
+            this.newestFirst = newestFirst;
+            this.meterNames = meterNames;
+        }
+
+        @Override
+        public UserBillStorage.BillRecord get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+            }
+            return record(newestFirst ? to - 1 - index : from + index, meterNames);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+
+    /**
+     * A BillSink that packs what a file reader finds into UserBills. Readers report a user's
+     * bills together, so they are gathered in plain arrays and sorted once per user.
+     * Bills whose period is not a valid YYYY-MM key cannot be packed and are counted as skipped.
+     */
+    static final class Collector implements BillSink {
+        private final Map<String, UserBills> target;
+        private final MeterDictionary meterIds;
+        private String current;
+        private int count;
+        private int[] periods = new int[32];
+        private int[] units = new int[32];
+        private long[] amounts = new long[32];
+        private int[] meters = new int[32];
+        private long skipped;
+
+        Collector(Map<String, UserBills> target, MeterDictionary meterIds) {
+            this.target = target;
+            this.meterIds = meterIds;
+        }
+
+        @Override
+        public void user(String username) {
+            switchTo(username);
+        }
+
+        @Override
+        public void record(String username, UserBillStorage.BillRecord record) {
+            int period = BillPeriods.toPackedPeriod(record.periodKey);
+            if (period < 0) {
+                switchTo(username);
+                skipped++;
+                return;
+            }
+            record(username, period, record.units, record.amountPaise, record.meterNumber);
+        }
+
+        @Override
+        public void record(String username, int period, int billUnits, long amountPaise, String meterNumber) {
+            switchTo(username);
+            if (count == periods.length) {
+                periods = Arrays.copyOf(periods, count * 2);
+                units = Arrays.copyOf(units, count * 2);
+                amounts = Arrays.copyOf(amounts, count * 2);
+                meters = Arrays.copyOf(meters, count * 2);
+            }
+            periods[count] = period;
+            units[count] = billUnits;
+            amounts[count] = amountPaise;
+            meters[count] = meterIds.idOf(meterNumber);
+            count++;
+        }
+
+        private void switchTo(String username) {
+            if (username.equals(current)) return;
+            finish();
+            current = username;
+        }
+
+        /**
+         * Stores the last user; call once the reader is done.
+         */
+        void finish() {
+            if (current == null) return;
+            UserBills built = build();
+            UserBills existing = target.get(current);
+            target.put(current, existing == null ? built : existing.withAll(built));
+            current = null;
+            count = 0;
+        }
+
+        /**
+         * Number of bills dropped because their period could not be packed.
+         */
+        long getSkipped() {
+            return skipped;
+        }
+
+        private UserBills build() {
+            // Snapshots are written in period order, so usually there is nothing to sort or merge
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = periods[i - 1] < periods[i];
+            }
+            if (sorted) {
+                return new UserBills(Arrays.copyOf(periods, count), Arrays.copyOf(units, count),
+                        Arrays.copyOf(amounts, count), Arrays.copyOf(meters, count));
+            }
+
+            // Sort by period, keeping file order within a period so the first complete bill wins
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) periods[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            UserBills bills = new UserBills(new int[count], new int[count], new long[count], new int[count]);
+            int n = 0;
+            for (long key : order) {
+                int i = (int) key;
+                if (n > 0 && bills.periods[n - 1] == periods[i]) {
+                    // Same period again: only replaces a bill that lacks units or amount
+                    if (bills.units[n - 1] >= 0 && bills.amounts[n - 1] >= 0) continue;
+                    n--;
+                }
+                bills.periods[n] = periods[i];
+                bills.units[n] = units[i];
+                bills.amounts[n] = amounts[i];
+                bills.meters[n] = meters[i];
+                n++;
+            }
+            if (n == count) return bills;
+            return new UserBills(Arrays.copyOf(bills.periods, n), Arrays.copyOf(bills.units, n),
+                    Arrays.copyOf(bills.amounts, n), Arrays.copyOf(bills.meters, n));
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package com.billing.gui;
 
+import com.billing.database.BillStore;
+import com.billing.database.BillStoreListener;
+import com.billing.database.BillSummary;
+import com.billing.database.BillStores;
 import com.billing.database.UserBillStorage;
 import com.billing.logic.BillCalculator;
 import com.billing.logic.BillCalculator.BillDetails;
+import com.billing.logic.Money;
+import com.billing.logic.Tariff;
 
 import javax.swing.*;
 import java.awt.*;
@@ -42,7 +48,17 @@ public class BillingFrame extends JFrame implements ActionListener {
     private javax.swing.table.TableRowSorter<javax.swing.table.DefaultTableModel> historySorter;
     private JTextField searchField;
     private JComboBox<String> yearFilter;
+    // Totals of the year picked in yearFilter, or of all years, from the store (see updateHistorySummary)
+    private JLabel historySummaryLabel;
+    // The year historySummaryLabel shows ("All" for all years), null when it must be read again
+    private String historySummaryYear;
     private String loggedInUser;
+    // Bill history engine chosen by storage.mode
+    private final BillStore billStore = BillStores.get();
+    // Bills shown in the history table, newest first; row i of the table model is record i
+    private java.util.List<UserBillStorage.BillRecord> historyRecords = new java.util.ArrayList<>();
+    // Applies this user's saved bills to the history table as they happen, see watchHistory
+    private BillStoreListener historyListener;
 
     private static final String[] MONTHS = {
         "January", "February", "March", "April", "May", "June",
@@ -238,7 +254,10 @@ public class BillingFrame extends JFrame implements ActionListener {
         yearFilter = new JComboBox<>(new String[] { "All" });
         yearFilter.setBounds(610, 100, 160, 30);
         historyPanel.add(yearFilter);
-        yearFilter.addActionListener(evt -> applyHistoryFilter());
+        yearFilter.addActionListener(evt -> {
+            applyHistoryFilter();
+            showHistorySummary();
+        });
 
         JButton refreshHistoryBtn = new JButton("Refresh");
         refreshHistoryBtn.setBounds(550, 140, 220, 30);
@@ -250,9 +269,24 @@ public class BillingFrame extends JFrame implements ActionListener {
         historyPanel.add(exportSelectedBtn);
         exportSelectedBtn.addActionListener(evt -> exportSelectedHistory());
 
+        historySummaryLabel = new JLabel();
+        historySummaryLabel.setVerticalAlignment(SwingConstants.TOP);
+        historySummaryLabel.setBounds(550, 230, 220, 150);
+        historyPanel.add(historySummaryLabel);
+
+        watchHistory();
         refreshHistory();
     }
 
+    @Override
+    public void dispose() {
+        if (historyListener != null) {
+            billStore.removeListener(historyListener);
+            historyListener = null;
+        }
+        super.dispose();
+    }
+
     @Override
     public void actionPerformed(ActionEvent e) {
         if (e.getSource() == calculateButton) {
@@ -283,8 +317,8 @@ public class BillingFrame extends JFrame implements ActionListener {
                 return;
             }
             // Check if this user already calculated this period
-            if (UserBillStorage.hasCalculated(loggedInUser, year, monthIndex)) {
-                String key = UserBillStorage.toPeriodKey(year, monthIndex);
+            if (billStore.hasCalculated(loggedInUser, year, monthIndex)) {
+                String key = BillStore.toPeriodKey(year, monthIndex);
                 lockLabel.setText("Bill already calculated for period " + key + ".");
                 JOptionPane.showMessageDialog(this,
                     "Bill already calculated for this month (" + key + ").",
@@ -307,8 +341,8 @@ public class BillingFrame extends JFrame implements ActionListener {
             }
             
             // Check if meter number already exists for another user
-            if (UserBillStorage.meterNumberExistsForOtherUser(meter, loggedInUser)) {
-                String owner = UserBillStorage.getMeterNumberOwner(meter);
+            if (billStore.meterNumberExistsForOtherUser(meter, loggedInUser)) {
+                String owner = billStore.getMeterNumberOwner(meter);
                 JOptionPane.showMessageDialog(this,
                     "This meter number has already been used by user '" + owner + "'. Please enter a different meter number.",
                     "Meter Number Already Used",
@@ -328,7 +362,8 @@ public class BillingFrame extends JFrame implements ActionListener {
             }
 
             // 3. Call the calculation engine
-            BillCalculator.BillDetails details = BillCalculator.calculate(units);
+            Tariff tariff = BillCalculator.getTariff();
+            BillCalculator.BillDetails details = BillCalculator.calculate(tariff, units);
 
             // 4. Build the output string
             StringBuilder billText = new StringBuilder();
@@ -343,22 +378,22 @@ public class BillingFrame extends JFrame implements ActionListener {
             billText.append("\n----------------------------------------\n");
             billText.append("           BILL BREAKDOWN\n");
             billText.append("----------------------------------------\n");
-            billText.append(String.format("%-25s Rs. %.2f\n", "Fixed Service Charge:", details.serviceCharge));
-            billText.append(String.format("%-25s Rs. %.2f\n", "Slab 1 Cost (0-100):", details.slab1Cost));
-            billText.append(String.format("%-25s Rs. %.2f\n", "Slab 2 Cost (101-300):", details.slab2Cost));
-            billText.append(String.format("%-25s Rs. %.2f\n", "Slab 3 Cost (301-500):", details.slab3Cost));
-            billText.append(String.format("%-25s Rs. %.2f\n", "Slab 4 Cost (>500):", details.slab4Cost));
+            billText.append(String.format("%-25s Rs. %s\n", "Fixed Service Charge:", Money.format(details.serviceChargePaise)));
+            for (int i = 0; i < details.slabCostsPaise.length; i++) {
+                String label = "Slab " + (i + 1) + " Cost (" + tariff.describeSlab(i) + "):";
+                billText.append(String.format("%-25s Rs. %s\n", label, Money.format(details.slabCostsPaise[i])));
+            }
             billText.append("========================================\n");
-            billText.append(String.format("%-25s Rs. %.2f\n", "TOTAL AMOUNT DUE:", details.totalAmountDue));
+            billText.append(String.format("%-25s Rs. %s\n", "TOTAL AMOUNT DUE:", Money.format(details.totalAmountDuePaise)));
             billText.append("========================================\n");
 
             // 5. Display in text area
             billTextArea.setText(billText.toString());
 
             // 6. Mark this period as calculated for the user with details and update history
-            UserBillStorage.addCalculated(loggedInUser, year, monthIndex, units, details.totalAmountDue, meter);
-            lockLabel.setText("Marked period " + UserBillStorage.toPeriodKey(year, monthIndex) + " as calculated.");
-            refreshHistory();
+            billStore.addCalculatedPaise(loggedInUser, year, monthIndex, units, details.totalAmountDuePaise, meter);
+            lockLabel.setText("Marked period " + BillStore.toPeriodKey(year, monthIndex) + " as calculated.");
+            // The history table picks the new bill up through historyListener
 
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, 
@@ -417,24 +452,94 @@ public class BillingFrame extends JFrame implements ActionListener {
     private void refreshHistory() {
         if (historyTableModel == null) return;
         historyTableModel.setRowCount(0);
-        java.util.List<UserBillStorage.BillRecord> list = UserBillStorage.getCalculatedRecords(loggedInUser);
-        // Sort newest first by periodKey (YYYY-MM) descending
-        list.sort((a, b) -> b.periodKey.compareTo(a.periodKey));
-        java.util.Set<String> years = new java.util.TreeSet<>((a, b) -> b.compareTo(a));
-        for (UserBillStorage.BillRecord r : list) {
-            // r.periodKey = YYYY-MM
-            String[] parts = r.periodKey.split("-");
-            String year = parts.length > 0 ? parts[0] : "";
+        // Already newest first, so the years below also come out newest first
+        historyRecords = new java.util.ArrayList<>(billStore.getCalculatedRecordsNewestFirst(loggedInUser));
+        java.util.Set<String> years = new java.util.LinkedHashSet<>();
+        for (UserBillStorage.BillRecord r : historyRecords) {
+            String year = yearOf(r);
             if (!year.isEmpty()) years.add(year);
-            int monthIndex = 0;
-            try { monthIndex = Integer.parseInt(parts[1]) - 1; } catch (Exception ignored) {}
-            String monthName = MONTHS[Math.max(0, Math.min(11, monthIndex))];
-            String amount = r.amount >= 0 ? String.format("%.2f", r.amount) : "-";
-            Object[] row = new Object[] { monthName, year, (r.units >= 0 ? r.units : "-"), amount };
+            Object[] row = new Object[] { monthNameOf(r), year, unitsText(r), amountText(r) };
             historyTableModel.addRow(row);
         }
         updateYearFilterOptions(years);
         applyHistoryFilter();
+        updateHistorySummary();
+    }
+
+    /**
+     * Keeps the history table in step with the store: bills this user saves, from this window
+     * or any other, are inserted, replaced or removed row by row instead of reloading the table.
+     * Events arrive on the saving thread and are applied on the event dispatch thread.
+     */
+    private void watchHistory() {
+        historyListener = new BillStoreListener() {
+            @Override
+            public void billAdded(String username, UserBillStorage.BillRecord record) {
+                if (username.equals(loggedInUser)) SwingUtilities.invokeLater(() -> putHistoryRow(record));
+            }
+
+            @Override
+            public void billUpdated(String username, UserBillStorage.BillRecord record) {
+                if (username.equals(loggedInUser)) SwingUtilities.invokeLater(() -> putHistoryRow(record));
+            }
+
+            @Override
+            public void billRemoved(String username, UserBillStorage.BillRecord record) {
+                if (username.equals(loggedInUser)) SwingUtilities.invokeLater(() -> removeHistoryRow(record));
+            }
+        };
+        billStore.addListener(historyListener);
+    }
+
+    /**
+     * Inserts the bill at its place in the newest-first table, or replaces the row for its period.
+     * An event for a bill the last refresh already showed just replaces that row.
+     */
+    private void putHistoryRow(UserBillStorage.BillRecord record) {
+        if (historyTableModel == null) return;
+        int at = 0;
+        while (at < historyRecords.size() && historyRecords.get(at).periodKey.compareTo(record.periodKey) > 0) at++;
+        boolean replacing = at < historyRecords.size() && historyRecords.get(at).periodKey.equals(record.periodKey);
+        // Replaced as remove plus insert, so the sorter filters the new values again
+        if (replacing) {
+            historyRecords.remove(at);
+            historyTableModel.removeRow(at);
+        }
+        String year = yearOf(record);
+        boolean newYear = !year.isEmpty() && !hasHistoryYear(year);
+        historyRecords.add(at, record);
+        historyTableModel.insertRow(at, new Object[] { monthNameOf(record), year, unitsText(record), amountText(record) });
+        updateHistorySummary();
+        if (newYear && yearFilter != null) {
+            // Years follow "All", newest first
+            int item = 1;
+            while (item < yearFilter.getItemCount() && yearFilter.getItemAt(item).compareTo(year) > 0) item++;
+            yearFilter.insertItemAt(year, item);
+        }
+    }
+
+    private void removeHistoryRow(UserBillStorage.BillRecord record) {
+        if (historyTableModel == null) return;
+        for (int i = 0; i < historyRecords.size(); i++) {
+            if (!historyRecords.get(i).periodKey.equals(record.periodKey)) continue;
+            historyRecords.remove(i);
+            historyTableModel.removeRow(i);
+            updateHistorySummary();
+            String year = yearOf(record);
+            if (yearFilter != null && !hasHistoryYear(year)) {
+                // Do not leave the filter on a year that has no rows left
+                if (year.equals(yearFilter.getSelectedItem())) yearFilter.setSelectedItem("All");
+                yearFilter.removeItem(year);
+            }
+            return;
+        }
+    }
+
+    private boolean hasHistoryYear(String year) {
+        for (UserBillStorage.BillRecord r : historyRecords) {
+            if (yearOf(r).equals(year)) return true;
+        }
+        return false;
     }
 
     private void exportSelectedHistory() {
@@ -461,42 +566,31 @@ public class BillingFrame extends JFrame implements ActionListener {
         content.append("Export Date: ").append(java.time.LocalDate.now()).append("\n");
         content.append("Total Records: ").append(selectedRows.length).append("\n\n");
 
-        // Sort by year and month for organized output
-        java.util.List<java.util.Map<String, String>> records = new java.util.ArrayList<>();
+        // Model rows are newest first, so rows in model order are already sorted by period
+        java.util.Arrays.sort(modelRows);
+        java.util.List<UserBillStorage.BillRecord> records = new java.util.ArrayList<>(modelRows.length);
         for (int modelRow : modelRows) {
-            java.util.Map<String, String> record = new java.util.HashMap<>();
-            record.put("month", String.valueOf(historyTableModel.getValueAt(modelRow, 0)));
-            record.put("year", String.valueOf(historyTableModel.getValueAt(modelRow, 1)));
-            record.put("units", String.valueOf(historyTableModel.getValueAt(modelRow, 2)));
-            record.put("amount", String.valueOf(historyTableModel.getValueAt(modelRow, 3)));
-            records.add(record);
+            records.add(historyRecords.get(modelRow));
         }
 
-        // Sort by year (descending) then by month
-        records.sort((a, b) -> {
-            int yearCompare = b.get("year").compareTo(a.get("year"));
-            if (yearCompare != 0) return yearCompare;
-            return getMonthIndex(b.get("month")) - getMonthIndex(a.get("month"));
-        });
-
         // Generate organized content
-        double totalAmount = 0.0;
-        int totalUnits = 0;
+        long totalPaise = 0;
+        long totalUnits = 0;
         
         for (int i = 0; i < records.size(); i++) {
-            java.util.Map<String, String> record = records.get(i);
+            UserBillStorage.BillRecord record = records.get(i);
             content.append("----------------------------------------\n");
             content.append("RECORD ").append(i + 1).append(" of ").append(records.size()).append("\n");
             content.append("----------------------------------------\n");
-            content.append("Period: ").append(record.get("month")).append(" ").append(record.get("year")).append("\n");
-            content.append("Units Consumed: ").append(record.get("units")).append(" kWh\n");
-            content.append("Bill Amount: Rs. ").append(record.get("amount")).append("\n");
+            content.append("Period: ").append(monthNameOf(record)).append(" ").append(yearOf(record)).append("\n");
+            content.append("Units Consumed: ").append(unitsText(record)).append(" kWh\n");
+            content.append("Bill Amount: Rs. ").append(amountText(record)).append("\n");
             
-            // Add to totals
-            try {
-                totalAmount += Double.parseDouble(record.get("amount"));
-                totalUnits += Integer.parseInt(record.get("units"));
-            } catch (NumberFormatException ignored) {}
+            // Add to totals (bills saved without details have no units or amount)
+            if (record.units >= 0 && record.amountPaise >= 0) {
+                totalPaise += record.amountPaise;
+                totalUnits += record.units;
+            }
             
             content.append("\n");
         }
@@ -507,8 +601,22 @@ public class BillingFrame extends JFrame implements ActionListener {
         content.append("========================================\n");
         content.append("Total Records Exported: ").append(records.size()).append("\n");
         content.append("Total Units Consumed: ").append(totalUnits).append(" kWh\n");
-        content.append("Total Amount: Rs. ").append(String.format("%.2f", totalAmount)).append("\n");
-        content.append("Average per Record: Rs. ").append(String.format("%.2f", records.size() > 0 ? totalAmount / records.size() : 0)).append("\n");
+        content.append("Total Amount: Rs. ").append(Money.format(totalPaise)).append("\n");
+        content.append("Average per Record: Rs. ").append(Money.format(Money.average(totalPaise, records.size()))).append("\n");
+        content.append("========================================\n\n");
+
+        // For the whole history and each year exported: the store's running totals, not the selection
+        content.append("========================================\n");
+        content.append("           ACCOUNT TOTALS\n");
+        content.append("========================================\n");
+        appendSummary(content, "All years", billStore.getSummary(loggedInUser));
+        java.util.Set<String> years = new java.util.LinkedHashSet<>();
+        for (UserBillStorage.BillRecord record : records) {
+            years.add(yearOf(record));
+        }
+        for (String year : years) {
+            appendSummary(content, year, billStore.getSummary(loggedInUser, Integer.parseInt(year)));
+        }
         content.append("========================================\n");
 
         // File chooser with better naming
@@ -533,13 +641,35 @@ public class BillingFrame extends JFrame implements ActionListener {
         }
     }
 
-    private int getMonthIndex(String monthName) {
-        for (int i = 0; i < MONTHS.length; i++) {
-            if (MONTHS[i].equals(monthName)) {
-                return i;
-            }
+    private static void appendSummary(StringBuilder content, String label, BillSummary summary) {
+        content.append(label).append(": ").append(summary.bills).append(" bill(s), ")
+                .append(summary.totalUnits).append(" kWh, Rs. ").append(Money.format(summary.totalPaise));
+        if (summary.pricedBills > 0) {
+            content.append(" (average Rs. ").append(Money.format(Money.average(summary.totalPaise, summary.pricedBills)))
+                    .append(", lowest Rs. ").append(Money.format(summary.minPaise))
+                    .append(", highest Rs. ").append(Money.format(summary.maxPaise)).append(")");
         }
-        return 0;
+        content.append("\n");
+    }
+
+    // r.periodKey = YYYY-MM
+    private static String yearOf(UserBillStorage.BillRecord r) {
+        int dash = r.periodKey.indexOf('-');
+        return dash >= 0 ? r.periodKey.substring(0, dash) : r.periodKey;
+    }
+
+    private static String monthNameOf(UserBillStorage.BillRecord r) {
+        int monthIndex = 0;
+        try { monthIndex = Integer.parseInt(r.periodKey.substring(r.periodKey.indexOf('-') + 1)) - 1; } catch (Exception ignored) {}
+        return MONTHS[Math.max(0, Math.min(11, monthIndex))];
+    }
+
+    private static Object unitsText(UserBillStorage.BillRecord r) {
+        return r.units >= 0 ? r.units : "-";
+    }
+
+    private static String amountText(UserBillStorage.BillRecord r) {
+        return r.amountPaise >= 0 ? Money.format(r.amountPaise) : "-";
     }
 
     private void updateYearFilterOptions(java.util.Set<String> years) {
@@ -568,5 +698,38 @@ public class BillingFrame extends JFrame implements ActionListener {
         historySorter.setRowFilter(combined);
     }
 
+    /**
+     * Reads the totals again after a refresh or a saved bill, see showHistorySummary.
+     */
+    private void updateHistorySummary() {
+        historySummaryYear = null;
+        showHistorySummary();
+    }
+
+    /**
+     * Shows the totals of the year picked in the filter, or of all years. They are asked from
+     * the store only when the year changes (or updateHistorySummary says they changed), as
+     * that may be a database query; typing in the search box does not change them.
+     */
+    private void showHistorySummary() {
+        if (historySummaryLabel == null) return;
+        String year = yearFilter != null ? (String) yearFilter.getSelectedItem() : "All";
+        boolean allYears = year == null || "All".equals(year);
+        if (allYears) year = "All";
+        if (year.equals(historySummaryYear)) return;
+        historySummaryYear = year;
+        BillSummary summary = allYears ? billStore.getSummary(loggedInUser) : billStore.getSummary(loggedInUser, Integer.parseInt(year));
+        StringBuilder text = new StringBuilder("<html><b>").append(allYears ? "All years" : year).append("</b><br>");
+        text.append("Bills: ").append(summary.bills).append("<br>");
+        text.append("Units: ").append(summary.totalUnits).append(" kWh<br>");
+        text.append("Amount: Rs. ").append(Money.format(summary.totalPaise)).append("<br>");
+        if (summary.pricedBills > 0) {
+            text.append("Average: Rs. ").append(Money.format(Money.average(summary.totalPaise, summary.pricedBills))).append("<br>");
+            text.append("Lowest: Rs. ").append(Money.format(summary.minPaise)).append("<br>");
+            text.append("Highest: Rs. ").append(Money.format(summary.maxPaise));
+        }
+        historySummaryLabel.setText(text.append("</html>").toString());
+    }
+
     
 }
@@ -1,5 +1,7 @@
 package com.billing.logic;
 
+import com.billing.config.AppConfig;
+
 /**
  * This class contains the core "business logic" for calculating an electricity bill.
  * It has NO Swing (GUI) code. It just does math.
@@ -7,21 +9,75 @@ package com.billing.logic;
  */
 public class BillCalculator {
 
-    // --- Define all our costs. This makes them easy to change later ---
-    
-    // Fixed charge applied to every bill
-    private static final double FIXED_SERVICE_CHARGE = 150.00; // Rs. 150
+    // --- The tariff (service charge + slab rates) comes from config.properties ---
+    // It is compiled once into a prefix-cost table, see Tariff.
+    private static volatile Tariff tariff = loadConfiguredTariff();
+
+    // --- Optional lookup table with every bill from 0 to N units already worked out ---
+    // Most meters read well under 2,000 units, so those bills become a plain array read.
+    // The table belongs to one tariff and is rebuilt whenever the tariff changes.
+    private static volatile int tableUnits = AppConfig.getBillTableUnits();
+    private static volatile long tableMaxBytes = AppConfig.getBillTableMaxBytes();
+    private static volatile BillTable table = BillTable.build(tariff, tableUnits, tableMaxBytes);
+
+    private static Tariff loadConfiguredTariff() {
+        try {
+            return Tariff.parse(AppConfig.getTariffServiceCharge(), AppConfig.getTariffSlabs());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid tariff in config, using default: " + e.getMessage());
+            return Tariff.defaultTariff();
+        }
+    }
+
+    /**
+     * Returns the tariff currently used for calculations.
+     */
+    public static Tariff getTariff() {
+        return tariff;
+    }
 
-    // Unit slab rates (per unit)
-    private static final double RATE_SLAB_1 = 5.00; // Rs. 5 (for first 100 units)
-    private static final double RATE_SLAB_2 = 7.00; // Rs. 7 (for next 200 units)
-    private static final double RATE_SLAB_3 = 9.00; // Rs. 9 (for next 200 units)
-    private static final double RATE_SLAB_4 = 11.00; // Rs. 11 (for all units above 500)
+    /**
+     * Replaces the tariff used for all following calculations. Synchronized like
+     * {@link #configureTable}, so the table is always the one built for the current tariff.
+     */
+    public static synchronized void setTariff(Tariff newTariff) {
+        if (newTariff == null) {
+            throw new IllegalArgumentException("Tariff cannot be null");
+        }
+        tariff = newTariff;
+        table = BillTable.build(newTariff, tableUnits, tableMaxBytes);
+    }
 
-    // Unit slab limits
-    private static final int LIMIT_SLAB_1 = 100; // Slab 1 is 0-100
-    private static final int LIMIT_SLAB_2 = 300; // Slab 2 is 101-300
-    private static final int LIMIT_SLAB_3 = 500; // Slab 3 is 301-500
+    /**
+     * Changes the size of the lookup table and rebuilds it for the current tariff.
+     * @param maxUnits largest unit count to precompute (0 turns the table off)
+     * @param maxBytes memory limit; the unit range is cut down to fit
+     */
+    public static synchronized void configureTable(int maxUnits, long maxBytes) {
+        tableUnits = maxUnits;
+        tableMaxBytes = maxBytes;
+        table = BillTable.build(tariff, maxUnits, maxBytes);
+    }
+
+    /**
+     * Largest unit count answered from the lookup table, or -1 if there is no table.
+     */
+    public static int getTableUnits() {
+        BillTable t = table;
+        return t == null ? -1 : t.maxUnits;
+    }
+
+    /**
+     * Fills the slab costs from the lookup table when the units are inside it,
+     * otherwise from the tariff's prefix-cost formula.
+     */
+    private static long fillSlabCosts(Tariff t, int units, long[] out, int offset) {
+        BillTable tb = table;
+        if (tb != null && tb.tariff == t && units >= 0 && units <= tb.maxUnits) {
+            return tb.fill(units, out, offset);
+        }
+        return t.fillSlabCosts(units, out, offset);
+    }
 
     /**
      * Calculates the total electricity bill based on the units consumed.
@@ -29,66 +85,125 @@ public class BillCalculator {
      * @return A BillDetails object containing the breakdown and total cost.
      */
     public static BillDetails calculate(int units) {
-        
-        // --- Calculation Variables ---
-        double slab1Cost = 0;
-        double slab2Cost = 0;
-        double slab3Cost = 0;
-        double slab4Cost = 0;
-        double totalUnitCost = 0;
-        double totalAmountDue = 0;
-
-        // --- The Slab Logic ---
-        // This is a "waterfall" calculation. We process the units in chunks.
-        
-        int remainingUnits = units;
+        return calculate(tariff, units);
+    }
+
+    /**
+     * Calculates the bill for the given units with a specific tariff.
+     */
+    public static BillDetails calculate(Tariff t, int units) {
+
+        // Every slab below the one the last unit falls into is full, that slab is partial,
+        // and the ones above it are empty. Tariff works this out with one binary search.
+        // All amounts are whole paise, so there is no rounding anywhere.
+        long[] slabCosts = new long[t.getSlabCount()];
+        long totalUnitCost = fillSlabCosts(t, units, slabCosts, 0);
+        long totalAmountDue = totalUnitCost + t.getServiceCharge();
 
-        // --- Slab 1 (0 - 100 units) ---
-        if (remainingUnits > 0) {
-            // Get the units for this slab (either all remaining, or 100, whichever is smaller)
-            int unitsInThisSlab = Math.min(remainingUnits, LIMIT_SLAB_1);
-            slab1Cost = unitsInThisSlab * RATE_SLAB_1;
-            remainingUnits -= unitsInThisSlab; // Subtract the units we just processed
+        // We create a new "BillDetails" object to send all this data back.
+        // This is much cleaner than just returning a single number.
+        return new BillDetails(t.getServiceCharge(), slabCosts, totalUnitCost, totalAmountDue);
+    }
+
+    /**
+     * Calculates bills for many meters at once with the current tariff.
+     * See {@link #calculateBatch(Tariff, int[], long[], long[], long[])}.
+     */
+    public static void calculateBatch(int[] units, long[] serviceCharges, long[] slabCosts, long[] totals) {
+        calculateBatch(tariff, units, serviceCharges, slabCosts, totals);
+    }
+
+    /**
+     * Calculates bills for many meters at once, e.g. for a month-end run.
+     * Results are written into caller-supplied columns instead of creating a
+     * BillDetails object per meter, so the arrays can be reused across chunks.
+     * For every index the values are exactly the ones {@link #calculate(int)} returns.
+     *
+     * @param tariff         the tariff to bill with
+     * @param units          units consumed per meter
+     * @param serviceCharges receives the fixed service charge per meter, in paise
+     * @param slabCosts      receives the slab costs in paise, {@code tariff.getSlabCount()} values per meter
+     *                       (meter i starts at slabCosts[i * tariff.getSlabCount()])
+     * @param totals         receives the total amount due per meter, in paise
+     */
+    public static void calculateBatch(Tariff tariff, int[] units, long[] serviceCharges, long[] slabCosts, long[] totals) {
+        int count = units.length;
+        int slabCount = tariff.getSlabCount();
+        if (serviceCharges.length < count || totals.length < count || slabCosts.length < count * slabCount) {
+            throw new IllegalArgumentException("Result arrays are too small for " + count + " meters");
         }
 
-        // --- Slab 2 (101 - 300 units) ---
-        if (remainingUnits > 0) {
-            // The limit for this slab is 200 units (300 - 100)
-            int unitsInThisSlab = Math.min(remainingUnits, LIMIT_SLAB_2 - LIMIT_SLAB_1);
-            slab2Cost = unitsInThisSlab * RATE_SLAB_2;
-            remainingUnits -= unitsInThisSlab;
+        long serviceCharge = tariff.getServiceCharge();
+        for (int i = 0; i < count; i++) {
+            long totalUnitCost = fillSlabCosts(tariff, units[i], slabCosts, i * slabCount);
+            serviceCharges[i] = serviceCharge;
+            totals[i] = totalUnitCost + serviceCharge;
         }
+    }
 
-        // --- Slab 3 (301 - 500 units) ---
-        if (remainingUnits > 0) {
-            // The limit for this slab is 200 units (500 - 300)
-            int unitsInThisSlab = Math.min(remainingUnits, LIMIT_SLAB_3 - LIMIT_SLAB_2);
-            slab3Cost = unitsInThisSlab * RATE_SLAB_3;
-            remainingUnits -= unitsInThisSlab;
+    /**
+     * Same as {@link #calculateBatch(int[], long[], long[], long[])} but fills rupee columns,
+     * matching the double fields of {@link BillDetails}.
+     */
+    public static void calculateBatch(int[] units, double[] serviceCharges, double[] slabCosts, double[] totals) {
+        Tariff t = tariff;
+        int count = units.length;
+        int slabCount = t.getSlabCount();
+        if (serviceCharges.length < count || totals.length < count || slabCosts.length < count * slabCount) {
+            throw new IllegalArgumentException("Result arrays are too small for " + count + " meters");
         }
 
-        // --- Slab 4 (Above 500 units) ---
-        if (remainingUnits > 0) {
-            // Anything left over falls into this slab
-            int unitsInThisSlab = remainingUnits;
-            slab4Cost = unitsInThisSlab * RATE_SLAB_4;
+        long[] slabPaise = new long[slabCount]; // reused for every meter
+        double serviceCharge = Money.toRupees(t.getServiceCharge());
+        for (int i = 0; i < count; i++) {
+            long totalUnitCost = fillSlabCosts(t, units[i], slabPaise, 0);
+            int base = i * slabCount;
+            for (int s = 0; s < slabCount; s++) {
+                slabCosts[base + s] = Money.toRupees(slabPaise[s]);
+            }
+            serviceCharges[i] = serviceCharge;
+            totals[i] = Money.toRupees(totalUnitCost + t.getServiceCharge());
         }
+    }
 
-        // --- Final Totals ---
-        totalUnitCost = slab1Cost + slab2Cost + slab3Cost + slab4Cost;
-        totalAmountDue = totalUnitCost + FIXED_SERVICE_CHARGE;
+    /**
+     * Precomputed slab breakdown and unit cost (in paise) for 0..maxUnits units of one tariff.
+     * Stored as flat primitive arrays: slabCosts holds slabCount values per unit count.
+     */
+    private static final class BillTable {
+        final Tariff tariff;
+        final int maxUnits;
+        final int slabCount;
+        final long[] unitCosts;
+        final long[] slabCosts;
 
-        // We create a new "BillDetails" object to send all this data back.
-        // This is much cleaner than just returning a single number.
-        return new BillDetails(
-            FIXED_SERVICE_CHARGE, 
-            slab1Cost, 
-            slab2Cost, 
-            slab3Cost, 
-            slab4Cost, 
-            totalUnitCost, 
-            totalAmountDue
-        );
+        private BillTable(Tariff tariff, int maxUnits) {
+            this.tariff = tariff;
+            this.maxUnits = maxUnits;
+            this.slabCount = tariff.getSlabCount();
+            this.unitCosts = new long[maxUnits + 1];
+            this.slabCosts = new long[(maxUnits + 1) * slabCount];
+            for (int u = 0; u <= maxUnits; u++) {
+                unitCosts[u] = tariff.fillSlabCosts(u, slabCosts, u * slabCount);
+            }
+        }
+
+        /**
+         * Builds a table for the tariff, limited to maxBytes of long arrays.
+         * Returns null when the table is turned off or does not fit at all.
+         */
+        static BillTable build(Tariff tariff, int maxUnits, long maxBytes) {
+            long bytesPerUnit = 8L * (tariff.getSlabCount() + 1);
+            long fitting = maxBytes / bytesPerUnit - 1;
+            long arrayLimit = (Integer.MAX_VALUE - 8) / tariff.getSlabCount() - 1;
+            int units = (int) Math.min(maxUnits, Math.min(fitting, arrayLimit));
+            return units > 0 ? new BillTable(tariff, units) : null;
+        }
+
+        long fill(int units, long[] out, int offset) {
+            System.arraycopy(slabCosts, units * slabCount, out, offset, slabCount);
+            return unitCosts[units];
+        }
     }
 
 
@@ -96,9 +211,17 @@ public class BillCalculator {
      * A simple "container" class to hold all the calculated bill values.
      * This makes it easy to pass all the data from the calculator to the GUI.
      * This is an "inner class" because it's only used by BillCalculator.
+     * The *Paise fields are the exact amounts; the double fields hold the same values in rupees.
      */
     public static class BillDetails {
+        public final long serviceChargePaise;
+        public final long[] slabCostsPaise; // one entry per tariff slab
+        public final long totalUnitCostPaise;
+        public final long totalAmountDuePaise;
+
         public final double serviceCharge;
+        public final double[] slabCosts; // one entry per tariff slab
+        // The first four slabs are also available by name for older callers
         public final double slab1Cost;
         public final double slab2Cost;
         public final double slab3Cost;
@@ -107,13 +230,29 @@ public class BillCalculator {
         public final double totalAmountDue;
 
         public BillDetails(double serviceCharge, double slab1, double slab2, double slab3, double slab4, double totalUnit, double total) {
-            this.serviceCharge = serviceCharge;
-            this.slab1Cost = slab1;
-            this.slab2Cost = slab2;
-            this.slab3Cost = slab3;
-            this.slab4Cost = slab4;
-            this.totalUnitCost = totalUnit;
-            this.totalAmountDue = total;
+            this(Money.fromRupees(serviceCharge),
+                 new long[] { Money.fromRupees(slab1), Money.fromRupees(slab2), Money.fromRupees(slab3), Money.fromRupees(slab4) },
+                 Money.fromRupees(totalUnit),
+                 Money.fromRupees(total));
+        }
+
+        public BillDetails(long serviceChargePaise, long[] slabCostsPaise, long totalUnitPaise, long totalPaise) {
+            this.serviceChargePaise = serviceChargePaise;
+            this.slabCostsPaise = slabCostsPaise;
+            this.totalUnitCostPaise = totalUnitPaise;
+            this.totalAmountDuePaise = totalPaise;
+
+            this.serviceCharge = Money.toRupees(serviceChargePaise);
+            this.slabCosts = new double[slabCostsPaise.length];
+            for (int i = 0; i < slabCostsPaise.length; i++) {
+                slabCosts[i] = Money.toRupees(slabCostsPaise[i]);
+            }
+            this.slab1Cost = slabCosts.length > 0 ? slabCosts[0] : 0;
+            this.slab2Cost = slabCosts.length > 1 ? slabCosts[1] : 0;
+            this.slab3Cost = slabCosts.length > 2 ? slabCosts[2] : 0;
+            this.slab4Cost = slabCosts.length > 3 ? slabCosts[3] : 0;
+            this.totalUnitCost = Money.toRupees(totalUnitPaise);
+            this.totalAmountDue = Money.toRupees(totalPaise);
         }
     }
     
@@ -123,7 +262,9 @@ public class BillCalculator {
      */
     public static void main(String[] args) {
         System.out.println("--- Testing Bill Calculator Logic ---");
-        
+        // The expected values below are for the default tariff, whatever config.properties says
+        setTariff(Tariff.defaultTariff());
+
         // Test Case 1: 80 units (Should be in Slab 1)
         // 150 (fixed) + (80 * 5) = 150 + 400 = 550
         BillDetails test1 = calculate(80);
@@ -146,6 +287,62 @@ public class BillCalculator {
         // Total = 150 + 500 + 1400 + 1800 + 1100 = 4950
         BillDetails test3 = calculate(600);
         System.out.println("Test 3 (600 units): Total = Rs. " + test3.totalAmountDue + " (Expected: 4950)");
+
+        // Test Case 4: the batch API must give the same numbers as calculate() for every meter
+        int[] batchUnits = new int[1001];
+        for (int i = 0; i < batchUnits.length; i++) {
+            batchUnits[i] = i;
+        }
+        long[] charges = new long[batchUnits.length];
+        int slabCount = getTariff().getSlabCount();
+        long[] slabs = new long[batchUnits.length * slabCount];
+        long[] totals = new long[batchUnits.length];
+        calculateBatch(batchUnits, charges, slabs, totals);
+        int mismatches = 0;
+        for (int i = 0; i < batchUnits.length; i++) {
+            BillDetails single = calculate(batchUnits[i]);
+            boolean same = single.serviceChargePaise == charges[i] && single.totalAmountDuePaise == totals[i];
+            for (int s = 0; s < slabCount; s++) {
+                same &= single.slabCostsPaise[s] == slabs[i * slabCount + s];
+            }
+            if (!same) {
+                mismatches++;
+            }
+        }
+        System.out.println("Test 4 (batch 0-1000 units): Mismatches = " + mismatches + " (Expected: 0)");
+
+        // Test Case 5: a 10-slab tariff must match a plain slab-by-slab waterfall
+        int[] limits = { 50, 100, 150, 200, 300, 400, 500, 750, 1000 };
+        long[] rates = { 300, 400, 500, 600, 700, 800, 900, 1000, 1100, 1200 };
+        Tariff big = new Tariff(10000, limits, rates);
+        mismatches = 0;
+        for (int u = 0; u <= 2000; u++) {
+            long expected = 0;
+            int lower = 0;
+            for (int s = 0; s < rates.length; s++) {
+                int upper = s < limits.length ? limits[s] : Integer.MAX_VALUE;
+                if (u > lower) expected += (Math.min(u, upper) - lower) * rates[s];
+                lower = upper;
+            }
+            if (big.unitCost(u) != expected) {
+                mismatches++;
+            }
+        }
+        System.out.println("Test 5 (10 slabs, 0-2000 units): Mismatches = " + mismatches + " (Expected: 0)");
+
+        // Test Case 6: bills from the lookup table must match the formula, inside and past its range
+        setTariff(big);
+        configureTable(1000, 1L << 20);
+        mismatches = 0;
+        for (int u = 0; u <= 2000; u++) {
+            long[] formula = new long[big.getSlabCount()];
+            long expected = big.fillSlabCosts(u, formula, 0) + big.getServiceCharge();
+            BillDetails fromTable = calculate(u);
+            if (fromTable.totalAmountDuePaise != expected || !java.util.Arrays.equals(fromTable.slabCostsPaise, formula)) {
+                mismatches++;
+            }
+        }
+        System.out.println("Test 6 (lookup table up to " + getTableUnits() + " units): Mismatches = " + mismatches + " (Expected: 0)");
     }
 }
 
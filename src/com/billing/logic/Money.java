@@ -0,0 +1,111 @@
+package com.billing.logic;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Helpers for money held as a long number of paise (1 rupee = 100 paise).
+ * Amounts are exact integers everywhere; these methods convert to and from the
+ * "1234.50" text used on screen, in user_bills.dat and in exports without going
+ * through double formatting or parsing.
+ */
+public final class Money {
+
+    public static final long PAISE_PER_RUPEE = 100;
+
+    private Money() {}
+
+    /**
+     * Formats paise as rupees with exactly two decimals, e.g. 123450 -> "1234.50".
+     */
+    public static String format(long paise) {
+        return appendTo(new StringBuilder(16), paise).toString();
+    }
+
+    /**
+     * Appends paise as rupees with exactly two decimals to the builder.
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long paise) {
+        if (paise < 0) {
+            sb.append('-');
+            paise = -paise;
+        }
+        long fraction = paise % PAISE_PER_RUPEE;
+        sb.append(paise / PAISE_PER_RUPEE).append('.');
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction);
+    }
+
+    /**
+     * Parses a rupee amount such as "1700", "1700.5", "1700.50" or a legacy
+     * Double.toString value such as "1700.0" or "1.2345E7" into paise.
+     * A third decimal rounds half up; further decimals are ignored.
+     * @throws NumberFormatException if the text is not a number
+     */
+    public static long parsePaise(String text) {
+        String s = text.trim();
+        int len = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < len && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long rupees = 0;
+        int digits = 0;
+        while (i < len && Character.isDigit(s.charAt(i))) {
+            rupees = rupees * 10 + (s.charAt(i) - '0');
+            if (rupees > Long.MAX_VALUE / (PAISE_PER_RUPEE * 10)) {
+                throw new NumberFormatException("Amount too large: " + text);
+            }
+            i++;
+            digits++;
+        }
+        long fraction = 0;
+        if (i < len && s.charAt(i) == '.') {
+            i++;
+            int place = 0;
+            while (i < len && Character.isDigit(s.charAt(i))) {
+                int d = s.charAt(i) - '0';
+                if (place == 0) fraction += d * 10;
+                else if (place == 1) fraction += d;
+                else if (place == 2 && d >= 5) fraction += 1;
+                place++;
+                i++;
+                digits++;
+            }
+        }
+        if (i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E') && digits > 0) {
+            // Scientific notation only shows up in files written with Double.toString
+            return new BigDecimal(s).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        }
+        if (digits == 0 || i != len) {
+            throw new NumberFormatException("Not an amount: " + text);
+        }
+        long paise = rupees * PAISE_PER_RUPEE + fraction;
+        return negative ? -paise : paise;
+    }
+
+    /**
+     * Converts paise to rupees as a double, for callers that still want a double.
+     */
+    public static double toRupees(long paise) {
+        return paise / (double) PAISE_PER_RUPEE;
+    }
+
+    /**
+     * Converts a rupee double to paise, rounding to the nearest paisa.
+     */
+    public static long fromRupees(double rupees) {
+        return Math.round(rupees * PAISE_PER_RUPEE);
+    }
+
+    /**
+     * Average of a paise total over a count, rounded half up to the nearest paisa.
+     */
+    public static long average(long totalPaise, long count) {
+        if (count <= 0) return 0;
+        long half = count / 2;
+        return totalPaise >= 0 ? (totalPaise + half) / count : -((-totalPaise + half) / count);
+    }
+}
@@ -0,0 +1,171 @@
+package com.billing.logic;
+
+/**
+ * A slab tariff: a fixed service charge plus any number of unit slabs, each with its own rate.
+ * The slabs are "compiled" once into a cumulative prefix-cost table, so working out a bill is
+ * a binary search for the slab the last unit falls into plus one multiply-add.
+ * All money is held in paise (see {@link Money}), so the table and every bill are exact.
+ *
+ * Text format used in config.properties (upper limit of each slab, then its rate per unit;
+ * the last slab must be open-ended and is written with '*'):
+ *     tariff.slabs=100:5.00,300:7.00,500:9.00,*:11.00
+ */
+public final class Tariff {
+
+    public static final String DEFAULT_SERVICE_CHARGE = "150.00";
+    public static final String DEFAULT_SLABS = "100:5.00,300:7.00,500:9.00,*:11.00";
+
+    private final long serviceCharge;   // paise
+    private final int[] lowerBounds;    // units already billed before slab i starts
+    private final int[] upperBounds;    // last unit of slab i (Integer.MAX_VALUE for the open slab)
+    private final long[] rates;         // paise per unit inside slab i
+    private final long[] fullSlabCost;  // paise for slab i when completely used
+    private final long[] prefixCost;    // paise for all slabs before slab i
+
+    /**
+     * @param serviceCharge fixed charge in paise
+     * @param upperLimits   last unit of every slab except the open-ended last one
+     * @param rates         paise per unit for every slab
+     */
+    public Tariff(long serviceCharge, int[] upperLimits, long[] rates) {
+        int count = rates.length;
+        if (count == 0 || upperLimits.length != count - 1) {
+            throw new IllegalArgumentException("A tariff needs N rates and N-1 slab limits");
+        }
+        if (serviceCharge < 0) {
+            throw new IllegalArgumentException("Service charge cannot be negative");
+        }
+        this.serviceCharge = serviceCharge;
+        this.lowerBounds = new int[count];
+        this.upperBounds = new int[count];
+        this.rates = rates.clone();
+        this.fullSlabCost = new long[count];
+        this.prefixCost = new long[count];
+
+        int lower = 0;
+        long cumulative = 0;
+        for (int i = 0; i < count; i++) {
+            if (rates[i] < 0) {
+                throw new IllegalArgumentException("Slab rates cannot be negative");
+            }
+            int upper = i < count - 1 ? upperLimits[i] : Integer.MAX_VALUE;
+            if (upper <= lower) {
+                throw new IllegalArgumentException("Slab limits must be increasing: " + upper);
+            }
+            lowerBounds[i] = lower;
+            upperBounds[i] = upper;
+            prefixCost[i] = cumulative;
+            if (i < count - 1) {
+                fullSlabCost[i] = (upper - lower) * rates[i];
+                cumulative += fullSlabCost[i];
+            }
+            lower = upper;
+        }
+    }
+
+    /**
+     * Parses a tariff from its config text, e.g. "150.00" and "100:5.00,300:7.00,*:9.00".
+     * @throws IllegalArgumentException if the text is not a valid tariff
+     */
+    public static Tariff parse(String serviceChargeText, String slabsText) {
+        long charge;
+        try {
+            charge = Money.parsePaise(serviceChargeText);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid service charge: " + serviceChargeText);
+        }
+        String[] tokens = slabsText.split(",");
+        int[] limits = new int[tokens.length - 1];
+        long[] rates = new long[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            String[] parts = tokens[i].trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid slab '" + tokens[i].trim() + "', expected limit:rate");
+            }
+            String limit = parts[0].trim();
+            boolean last = i == tokens.length - 1;
+            if (last != "*".equals(limit)) {
+                throw new IllegalArgumentException("Only the last slab must be open-ended ('*'): " + slabsText);
+            }
+            try {
+                if (!last) limits[i] = Integer.parseInt(limit);
+                rates[i] = Money.parsePaise(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid slab '" + tokens[i].trim() + "'");
+            }
+        }
+        return new Tariff(charge, limits, rates);
+    }
+
+    public static Tariff defaultTariff() {
+        return parse(DEFAULT_SERVICE_CHARGE, DEFAULT_SLABS);
+    }
+
+    /**
+     * Fixed service charge in paise.
+     */
+    public long getServiceCharge() {
+        return serviceCharge;
+    }
+
+    public int getSlabCount() {
+        return rates.length;
+    }
+
+    /**
+     * Returns the slab the last of the given units falls into (binary search over the slab limits).
+     */
+    public int slabIndex(int units) {
+        int lo = 0;
+        int hi = rates.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (units > lowerBounds[mid]) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Cost of the units alone (without the service charge), in paise.
+     */
+    public long unitCost(int units) {
+        if (units <= 0) return 0;
+        int slab = slabIndex(units);
+        return prefixCost[slab] + (units - lowerBounds[slab]) * rates[slab];
+    }
+
+    /**
+     * Writes the cost in paise of every slab for the given units into {@code out}, starting at {@code offset}.
+     * @return the total unit cost in paise, i.e. the sum of the written values
+     */
+    public long fillSlabCosts(int units, long[] out, int offset) {
+        int count = rates.length;
+        if (units <= 0) {
+            for (int i = 0; i < count; i++) out[offset + i] = 0;
+            return 0;
+        }
+        int slab = slabIndex(units);
+        for (int i = 0; i < slab; i++) {
+            out[offset + i] = fullSlabCost[i];
+        }
+        out[offset + slab] = (units - lowerBounds[slab]) * rates[slab];
+        for (int i = slab + 1; i < count; i++) {
+            out[offset + i] = 0;
+        }
+        return prefixCost[slab] + out[offset + slab];
+    }
+
+    /**
+     * Human readable unit range of a slab, e.g. "0-100", "101-300" or ">500".
+     */
+    public String describeSlab(int slab) {
+        if (slab == rates.length - 1) {
+            return slab == 0 ? "all units" : ">" + lowerBounds[slab];
+        }
+        return (slab == 0 ? 0 : lowerBounds[slab] + 1) + "-" + upperBounds[slab];
+    }
+}
@@ -0,0 +1,28 @@
+package com.billing.migration;
+
+import com.billing.database.BinaryBillFile;
+
+import java.io.File;
+
+/**
+ * One-time conversion tool: writes user_bills.dat (text) as user_bills.bin (binary).
+ * The text file is left untouched. Set storage.format=binary in config.properties to
+ * make the application load and write the binary file from then on.
+ *
+ * Usage: java com.billing.migration.ConvertBillHistory [textFile] [binaryFile]
+ */
+public class ConvertBillHistory {
+
+    public static void main(String[] args) throws Exception {
+        File text = new File(args.length > 0 ? args[0] : "user_bills.dat");
+        File binary = new File(args.length > 1 ? args[1] : "user_bills.bin");
+        if (!text.exists()) {
+            System.out.println(text + " not found. Nothing to convert.");
+            return;
+        }
+        long start = System.nanoTime();
+        long bills = BinaryBillFile.convert(text, binary);
+        System.out.println("Converted " + bills + " bills from " + text + " to " + binary
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
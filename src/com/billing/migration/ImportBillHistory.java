@@ -0,0 +1,55 @@
+package com.billing.migration;
+
+import com.billing.config.AppConfig;
+import com.billing.database.JdbcBillStorage;
+import com.billing.database.OffHeapBillStore;
+
+import java.io.File;
+
+/**
+ * One-time migration tool: copies the file bill history (user_bills.dat or user_bills.bin)
+ * into the user_bills table of the database configured with db.* in config.properties,
+ * before switching to storage.mode=jdbc. Bills already in the table are kept.
+ *
+ * With storage.mode=offheap in config.properties it copies the whole history instead (every
+ * storage.shards shard of storage.file with its log and archives) into storage.offheap.file,
+ * before the application is started with that mode. Bills already in that file are kept.
+ *
+ * Usage: ImportBillHistory [historyFile]   (default: storage.file, i.e. user_bills.dat)
+ */
+public class ImportBillHistory {
+
+    public static void main(String[] args) throws Exception {
+        if ("offheap".equals(AppConfig.getBillStorageMode())) {
+            importOffHeap(args.length > 0 ? args[0] : AppConfig.getBillStorageFile());
+            return;
+        }
+        File file = new File(args.length > 0 ? args[0] : AppConfig.getBillStorageFile());
+        if (!file.exists()) {
+            System.out.println(file + " not found. Nothing to import.");
+            return;
+        }
+        JdbcBillStorage database = new JdbcBillStorage(AppConfig.getDbUrl(), AppConfig.getDbUser(),
+                AppConfig.getDbPassword(), AppConfig.getBillDbBatchSize());
+        long start = System.nanoTime();
+        long bills = database.importFile(file);
+        database.close();
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Import complete. Bills read from " + file + ": " + bills + " in " + elapsedMs + " ms");
+    }
+
+    private static void importOffHeap(String historyFile) throws Exception {
+        String target = AppConfig.getBillOffHeapFile();
+        if (target.isEmpty()) {
+            System.out.println("storage.offheap.file is empty, so the off-heap store is not saved. Nothing to import into.");
+            return;
+        }
+        OffHeapBillStore store = new OffHeapBillStore(new File(target));
+        long start = System.nanoTime();
+        long bills = store.importHistory(historyFile, AppConfig.getBillShards());
+        store.close();
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Import complete. Bills read from " + historyFile + " into " + target + ": " + bills
+                + " in " + elapsedMs + " ms");
+    }
+}
@@ -0,0 +1,31 @@
+package com.billing.migration;
+
+import com.billing.config.AppConfig;
+import com.billing.database.BillShards;
+
+/**
+ * One-time tool that splits the file bill history into a different number of shards
+ * (storage.shards), or joins shards back into a single user_bills.dat. Run it while the
+ * application is stopped, then set storage.shards to the new count in config.properties.
+ * The new shards are written as text; with storage.format=binary they become binary at
+ * their next snapshot.
+ *
+ * Usage: java com.billing.migration.ReshardBillHistory newShards [oldShards] [storageFile]
+ *        (defaults: storage.shards and storage.file from config.properties)
+ */
+public class ReshardBillHistory {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: ReshardBillHistory newShards [oldShards] [storageFile]");
+            return;
+        }
+        int toShards = Integer.parseInt(args[0]);
+        int fromShards = args.length > 1 ? Integer.parseInt(args[1]) : AppConfig.getBillShards();
+        String file = args.length > 2 ? args[2] : AppConfig.getBillStorageFile();
+        long start = System.nanoTime();
+        long bills = BillShards.reshard(file, fromShards, toShards);
+        System.out.println("Resharded " + bills + " bills of " + file + " from " + fromShards + " to " + toShards
+                + " shards in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
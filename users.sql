@@ -8,4 +8,16 @@ CREATE TABLE IF NOT EXISTS users (
 
 INSERT INTO users (username, password)
 VALUES ('admin', '12345')
-ON DUPLICATE KEY UPDATE password='12345';
\ No newline at end of file
+ON DUPLICATE KEY UPDATE password='12345';
+
+-- Bill history for storage.mode=jdbc (created automatically on first use if missing)
+CREATE TABLE IF NOT EXISTS user_bills (
+  username VARCHAR(50) NOT NULL,
+  bill_period INT NOT NULL,
+  units INT NOT NULL,
+  amount_paise BIGINT NOT NULL,
+  meter_number VARCHAR(64),
+  meter_key VARCHAR(64),
+  PRIMARY KEY (username, bill_period),
+  INDEX idx_user_bills_meter (meter_key, bill_period)
+);